@@ -0,0 +1,28 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import org.junit.Test;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Run all benchmarks from this package, and write results as JSON so they can be archived and compared over time.
+ * Use <code>mvn -P benchmark test</code>.
+ */
+public class BenchmarkRunner {
+
+    @Test
+    public void runBenchmarks() throws Exception {
+        Options options = new OptionsBuilder()
+                .include(BenchmarkRunner.class.getPackage().getName() + ".*Benchmark")
+                .warmupIterations(Integer.getInteger("benchmark.warmupIterations", 3))
+                .measurementIterations(Integer.getInteger("benchmark.measurementIterations", 5))
+                .forks(Integer.getInteger("benchmark.forks", 1))
+                .shouldFailOnError(true)
+                .resultFormat(ResultFormatType.JSON)
+                .result(System.getProperty("benchmark.result", "target/jmh-result.json"))
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,116 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import hudson.EnvVars;
+import hudson.Launcher;
+import hudson.model.Environment;
+import hudson.model.TaskListener;
+import hudson.util.ArgumentListBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Code paths ran for every command a build launches (or every container it starts), with a build environment
+ * comparable to a large job: hundreds of variables, dozens of volumes, masked arguments.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LauncherDecorationBenchmark {
+
+    @Param({"50", "500"})
+    public int variables;
+
+    @Param({"5", "50"})
+    public int volumes;
+
+    private EnvVars environment;
+    private Set<String> sensitive;
+    private List<Environment> environments;
+    private BuiltInContainer container;
+    private Map<String, String> expandedVolumes;
+    private String[] command;
+    private boolean[] masks;
+
+    @Setup
+    public void setup() {
+        environment = new EnvVars();
+        sensitive = new HashSet<String>();
+        for (int i = 0; i < variables; i++) {
+            environment.put("VARIABLE_" + i, "some value for variable " + i + " with a reasonable length");
+            if (i % 10 == 0) sensitive.add("VARIABLE_" + i);
+        }
+        environment.put("PATH", "/usr/local/sbin:/usr/local/bin:/usr/sbin:/usr/bin:/sbin:/bin");
+        environment.put("WORKSPACE", "/var/jenkins/workspace/job");
+        environment.put("HOSTNAME", "agent");
+
+        environments = new ArrayList<Environment>();
+        for (int i = 0; i < 3; i++) {
+            final int n = i;
+            environments.add(new Environment() {
+                @Override
+                public void buildEnvVars(Map<String, String> env) {
+                    env.put("PATH+TOOL" + n, "/opt/tool" + n + "/bin");
+                    env.put("TOOL" + n + "_HOME", "/opt/tool" + n);
+                }
+            });
+        }
+
+        container = new BuiltInContainer(null);
+        for (int i = 0; i < volumes; i++) {
+            container.bindMount("${WORKSPACE}/volume" + i, "/volume" + i);
+        }
+        expandedVolumes = container.getVolumes(environment);
+
+        command = new String[] {"/bin/sh", "-xe", "/tmp/hudson1234567890.sh", "--password", "secret"};
+        masks = new boolean[] {false, false, false, false, true};
+    }
+
+    @Benchmark
+    public EnvVars buildContainerEnvironment() {
+        return DockerDecoratedLauncher.containerEnvironment(environment, environments);
+    }
+
+    @Benchmark
+    public EnvVars environmentDelta() {
+        return DockerDecoratedLauncher.delta(DockerDecoratedLauncher.containerEnvironment(environment, environments), environment);
+    }
+
+    @Benchmark
+    public Map<String, String> getVolumes() {
+        return container.getVolumes(environment);
+    }
+
+    @Benchmark
+    public Launcher.ProcStarter executeIn() {
+        Launcher.ProcStarter starter = new Launcher.LocalLauncher(TaskListener.NULL).launch().cmds(command).masks(masks);
+        List<String> prefix = new ArrayList<String>(Arrays.asList("docker", "-H", "unix:///var/run/docker.sock"));
+        Docker.addExecArgs(prefix, "0123456789ab", "1000:1000", environment);
+        Docker.prepend(starter, prefix);
+        return starter;
+    }
+
+    @Benchmark
+    public ArgumentListBuilder runDetached() {
+        ArgumentListBuilder args = new ArgumentListBuilder("docker", "-H", "unix:///var/run/docker.sock");
+        return Docker.addRunArgs(args, "job-42", "maven:3-jdk-8", "/var/jenkins/workspace/job",
+                expandedVolumes, Collections.<Integer, Integer>emptyMap(), new HashMap<String, String>(),
+                environment, sensitive, null, "2g", "512", null, false, Collections.<String, String>emptyMap(),
+                "172.17.0.1", "/bin/cat");
+    }
+}
@@ -0,0 +1,387 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.Util;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DirScanner;
+import hudson.util.FileVisitor;
+import jenkins.MasterToSlaveFileCallable;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+/**
+ * Docker build context, as the set of files from context directory a Dockerfile actually relies on, excluding the ones
+ * matched by <code>.dockerignore</code>. This class is used on the node hosting the build workspace, and streams
+ * context to Docker daemon as a tar archive, so we don't have to upload the whole context directory.
+ */
+class BuildContext {
+
+    private static final int THREADS = Math.min(Runtime.getRuntime().availableProcessors(), 8);
+
+    private final File root;
+    private final String dockerfile;
+    private final boolean fullContext;
+
+    /**
+     * @param fullContext include all files from context directory (but the ones excluded by <code>.dockerignore</code>),
+     *                    not just the ones Dockerfile refers to. Required if base image has <code>ONBUILD</code> triggers
+     *                    relying on context.
+     */
+    BuildContext(File root, String dockerfile, boolean fullContext) {
+        this.root = root;
+        this.dockerfile = dockerfile;
+        this.fullContext = fullContext;
+    }
+
+    /**
+     * Relative paths (using <code>/</code> separator) of the files from build context the Dockerfile relies on.
+     */
+    SortedSet<String> files() throws IOException {
+        DockerIgnore ignore = DockerIgnore.load(root);
+        SortedSet<String> files = new TreeSet<String>();
+        // docker always sends Dockerfile and .dockerignore, even if excluded
+        files.add(normalize(dockerfile));
+        if (new File(root, ".dockerignore").isFile()) files.add(".dockerignore");
+
+        String content = FileUtils.readFileToString(new File(root, dockerfile), "UTF-8");
+        List<String> sources = fullContext ? null : Dockerfile.parse(content).getContextSources();
+        if (sources == null) {
+            collect(root, "", files, ignore);
+            return files;
+        }
+        List<Pattern> globs = new ArrayList<Pattern>();
+        for (String source : sources) {
+            String path = normalize(source);
+            if (path.length() == 0) {
+                collect(root, "", files, ignore);
+                return files;
+            }
+            if (isGlob(path)) {
+                globs.add(glob(path));
+            } else if (!ignore.isExcluded(path)) {
+                File f = new File(root, path);
+                if (f.isDirectory() && !Files.isSymbolicLink(f.toPath())) {
+                    collect(f, path + "/", files, ignore);
+                } else if (f.exists() || Files.isSymbolicLink(f.toPath())) {
+                    files.add(path);
+                }
+            }
+        }
+        if (!globs.isEmpty()) {
+            SortedSet<String> all = new TreeSet<String>();
+            collect(root, "", all, ignore);
+            for (String file : all) {
+                if (matchesAny(globs, file)) files.add(file);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Write build context as a tar archive to <code>out</code>, which is closed once completed.
+     */
+    void writeTar(OutputStream out) throws IOException, InterruptedException {
+        final SortedSet<String> files = files();
+        new FilePath(root).tar(out, new DirScanner() {
+            @Override
+            public void scan(File dir, FileVisitor visitor) throws IOException {
+                for (String file : files) {
+                    File f = new File(dir, file);
+                    if (visitor.understandsSymlink() && Files.isSymbolicLink(f.toPath())) {
+                        visitor.visitSymlink(f, Files.readSymbolicLink(f.toPath()).toString(), file);
+                    } else {
+                        visitor.visit(f, file);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Content hash for this build context: files path, mode and content. Files are hashed in parallel.
+     */
+    String digest() throws IOException, InterruptedException {
+        SortedSet<String> files = files();
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<String>> hashes = new ArrayList<Future<String>>(files.size());
+            for (final String file : files) {
+                hashes.add(executor.submit(new Callable<String>() {
+                    public String call() throws IOException {
+                        return hash(new File(root, file));
+                    }
+                }));
+            }
+            MessageDigest digest = sha256();
+            int i = 0;
+            for (String file : files) {
+                digest.update((file + '\0' + hashes.get(i++).get() + '\n').getBytes("UTF-8"));
+            }
+            return Util.toHexString(digest.digest());
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to compute build context digest", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static String hash(File file) throws IOException {
+        if (Files.isSymbolicLink(file.toPath())) {
+            return "link:" + Files.readSymbolicLink(file.toPath());
+        }
+        MessageDigest digest = sha256();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[65536];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+            }
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        return (file.canExecute() ? "x:" : "f:") + Util.toHexString(digest.digest());
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void collect(File dir, String prefix, SortedSet<String> files, DockerIgnore ignore) {
+        File[] children = dir.listFiles();
+        if (children == null) return;
+        for (File child : children) {
+            String path = prefix + child.getName();
+            if (child.isDirectory() && !Files.isSymbolicLink(child.toPath())) {
+                if (!ignore.isPruned(path)) collect(child, path + "/", files, ignore);
+            } else if (!ignore.isExcluded(path)) {
+                files.add(path);
+            }
+        }
+    }
+
+    private static boolean matchesAny(List<Pattern> globs, String file) {
+        // a pattern matching a directory includes all of its content
+        for (String path = file; path != null; path = parent(path)) {
+            for (Pattern glob : globs) {
+                if (glob.matcher(path).matches()) return true;
+            }
+        }
+        return false;
+    }
+
+    static String parent(String path) {
+        int slash = path.lastIndexOf('/');
+        return slash > 0 ? path.substring(0, slash) : null;
+    }
+
+    /**
+     * Clean a path declared in Dockerfile (or <code>.dockerignore</code>) so it's relative to context root.
+     */
+    static String normalize(String path) {
+        String p = path.replace('\\', '/');
+        List<String> segments = new ArrayList<String>();
+        for (String segment : p.split("/")) {
+            if (segment.length() == 0 || segment.equals(".")) continue;
+            if (segment.equals("..")) {
+                if (!segments.isEmpty()) segments.remove(segments.size() - 1);
+                continue;
+            }
+            segments.add(segment);
+        }
+        return Util.join(segments, "/");
+    }
+
+    static boolean isGlob(String path) {
+        return path.indexOf('*') >= 0 || path.indexOf('?') >= 0 || path.indexOf('[') >= 0;
+    }
+
+    /**
+     * Convert a Go <code>filepath.Match</code> pattern into a regular expression. As for <code>.dockerignore</code>
+     * we also support <code>**</code> to match any number of directories.
+     */
+    static Pattern glob(String pattern) {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            switch (c) {
+                case '*':
+                    if (i + 1 < pattern.length() && pattern.charAt(i + 1) == '*') {
+                        i++;
+                        if (i + 1 < pattern.length() && pattern.charAt(i + 1) == '/') {
+                            i++;
+                            regex.append("(.*/)?");
+                        } else {
+                            regex.append(".*");
+                        }
+                    } else {
+                        regex.append("[^/]*");
+                    }
+                    break;
+                case '?':
+                    regex.append("[^/]");
+                    break;
+                case '[':
+                    int end = pattern.indexOf(']', i + 1);
+                    if (end < 0) {
+                        regex.append("\\[");
+                    } else {
+                        String range = pattern.substring(i + 1, end);
+                        if (range.startsWith("^")) range = "!" + range.substring(1);
+                        if (range.startsWith("!")) {
+                            regex.append("[^").append(range.substring(1).replace("\\", "\\\\")).append(']');
+                        } else {
+                            regex.append('[').append(range.replace("\\", "\\\\")).append(']');
+                        }
+                        i = end;
+                    }
+                    break;
+                case '\\':
+                    if (i + 1 < pattern.length()) {
+                        regex.append(Pattern.quote(String.valueOf(pattern.charAt(++i))));
+                    }
+                    break;
+                default:
+                    regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    /**
+     * Compute {@link #digest()} for build context on the node hosting it.
+     */
+    static final class Digest extends MasterToSlaveFileCallable<String> {
+        private final String dockerfile;
+        private final boolean fullContext;
+
+        Digest(String dockerfile, boolean fullContext) {
+            this.dockerfile = dockerfile;
+            this.fullContext = fullContext;
+        }
+
+        @Override
+        public String invoke(File context, VirtualChannel channel) throws IOException, InterruptedException {
+            return new BuildContext(context, dockerfile, fullContext).digest();
+        }
+    }
+
+    /**
+     * Run <code>docker build</code> on the node hosting build context, streaming context to docker CLI stdin.
+     * @return built image ID, <code>null</code> if build failed
+     */
+    static final class Build extends MasterToSlaveFileCallable<String> {
+        private final List<String> args;
+        private final Map<String, String> env;
+        private final String dockerfile;
+        private final boolean fullContext;
+        private final TaskListener listener;
+
+        Build(List<String> args, Map<String, String> env, String dockerfile, boolean fullContext, TaskListener listener) {
+            this.args = args;
+            this.env = env;
+            this.dockerfile = dockerfile;
+            this.fullContext = fullContext;
+            this.listener = listener;
+        }
+
+        @Override
+        public String invoke(File context, VirtualChannel channel) throws IOException, InterruptedException {
+            File iid = File.createTempFile("dcbep-", ".iid");
+            try {
+                List<String> cmds = new ArrayList<String>(args);
+                cmds.add("--iidfile");
+                cmds.add(iid.getPath());
+                cmds.add("--file");
+                cmds.add(normalize(dockerfile));
+                cmds.add("-");
+
+                Proc proc = new Launcher.LocalLauncher(listener).launch()
+                        .cmds(cmds).envs(env).writeStdin()
+                        .stdout(listener).stderr(listener.getLogger()).start();
+                Stdin stdin = new Stdin(proc.getStdin());
+                try {
+                    new BuildContext(context, dockerfile, fullContext).writeTar(stdin);
+                } catch (IOException e) {
+                    IOUtils.closeQuietly(stdin);
+                    // docker build exited before reading the whole context, it has reported the cause
+                    if (proc.join() != 0 && stdin.broken) return null;
+                    throw e;
+                }
+                if (proc.join() != 0) return null;
+                return FileUtils.readFileToString(iid, "UTF-8").trim();
+            } finally {
+                iid.delete();
+            }
+        }
+    }
+
+    /**
+     * docker CLI stdin, to tell docker no longer reading build context apart from a failure to read context files.
+     */
+    private static final class Stdin extends FilterOutputStream {
+        private volatile boolean broken;
+
+        Stdin(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            try {
+                out.write(b);
+            } catch (IOException e) {
+                broken = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                out.write(b, off, len);
+            } catch (IOException e) {
+                broken = true;
+                throw e;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                broken = true;
+                throw e;
+            }
+        }
+    }
+}
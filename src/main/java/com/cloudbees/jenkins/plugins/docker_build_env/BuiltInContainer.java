@@ -1,17 +1,25 @@
 package com.cloudbees.jenkins.plugins.docker_build_env;
 
 import hudson.EnvVars;
+import hudson.Extension;
+import hudson.Launcher;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildBadgeAction;
+import hudson.model.Environment;
 import hudson.model.EnvironmentContributingAction;
 import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
 
 import javax.annotation.Nonnull;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
 
 /**
  * Used to determine if launcher has to be decorated to execute in container, after SCM checkout completed.
@@ -23,10 +31,37 @@ public class BuiltInContainer implements BuildBadgeAction, EnvironmentContributi
 
     /* package */ transient String container;
 
+    /* package */ transient String userId;
+
+    /* package */ transient ContainerAgent agent;
+
+    /** Build environment, to be passed on every command when container hasn't been started with it */
+    /* package */ transient EnvVars environment;
+
+    /** Cache volumes leased for this build, released on tear down */
+    /* package */ transient List<CacheVolumes.Lease> caches = new ArrayList<CacheVolumes.Lease>();
+
+    /** Image preparation started while SCM checkout is running */
+    /* package */ transient Future<String> preparation;
+
+    /** Container resource usage, sampled while build runs */
+    /* package */ ContainerStats stats;
+
+    /* package */ transient ScheduledFuture<?> statsSampler;
+
     private transient boolean enable;
     private final transient Docker docker;
+
+    /** environment set in container, which <code>docker exec</code> commands inherit */
+    private transient EnvVars containerEnvironment;
+    /** environment for launched commands, cached until build environments change */
+    private transient EnvVars launchEnvironment;
+    private transient EnvVars launchEnvironmentDelta;
+    private transient List<Environment> launchEnvironments;
     private List<Integer> ports = new ArrayList<Integer>();
     private Map<String,String> volumes = new HashMap<String,String>();
+    /** time spent in each phase of docker build environment lifecycle */
+    private Map<String, Timing> timings = new LinkedHashMap<String, Timing>();
 
     public BuiltInContainer(Docker docker) {
         this.docker = docker;
@@ -64,13 +99,142 @@ public class BuiltInContainer implements BuildBadgeAction, EnvironmentContributi
         return docker;
     }
 
-    public boolean tearDown() throws IOException, InterruptedException {
+    /**
+     * @param success build succeeded, so changes to copy-on-write caches can be kept
+     */
+    public boolean tearDown(TaskListener listener, boolean success) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        if (statsSampler != null) {
+            statsSampler.cancel(false);
+        }
         if (container != null) {
             enable = false;
-            docker.kill(container);
+            // stop build processes right away, but remove container in background so we don't block executor while
+            // daemon deletes its writable layer
+            try {
+                docker.kill(container);
+            } catch (IOException e) {
+                // reaper will still force removal
+                listener.getLogger().println("Failed to stop docker container " + container + ": " + e.getMessage());
+            }
+            ContainerReaper.submit(docker, container);
+            ImageCollector.release(docker, image);
+        }
+        if (agent != null) {
+            agent.cleanup();
+        }
+        releaseCaches(success);
+        docker.recordTiming("teardown", start);
+        return true;
+
+    }
+
+    /**
+     * Environment for commands launched in container, including build wrappers contribution. This is computed once
+     * and shared by all launchers of the build, until the build environments change, so must not be modified.
+     */
+    synchronized EnvVars getLaunchEnvironment(AbstractBuild build, Launcher launcher) throws IOException, InterruptedException {
+        refreshLaunchEnvironment(build, launcher);
+        return launchEnvironment;
+    }
+
+    /**
+     * Variables from {@link #getLaunchEnvironment(AbstractBuild, Launcher)} which aren't already set in container,
+     * so must be passed to <code>docker exec</code>.
+     */
+    synchronized EnvVars getLaunchEnvironmentDelta(AbstractBuild build, Launcher launcher) throws IOException, InterruptedException {
+        refreshLaunchEnvironment(build, launcher);
+        return launchEnvironmentDelta;
+    }
+
+    private void refreshLaunchEnvironment(AbstractBuild build, Launcher launcher) throws IOException, InterruptedException {
+        if (containerEnvironment == null) {
+            containerEnvironment = docker.getEnv(container, launcher);
+        }
+        List<Environment> environments = build.getEnvironments();
+        if (launchEnvironment != null && sameEnvironments(environments)) {
+            return;
+        }
+        EnvVars base = new EnvVars(containerEnvironment);
+        if (environment != null) {
+            base.putAll(environment);
+        }
+        launchEnvironment = DockerDecoratedLauncher.containerEnvironment(base, environments);
+        launchEnvironmentDelta = DockerDecoratedLauncher.delta(launchEnvironment, containerEnvironment);
+        launchEnvironments = new ArrayList<Environment>(environments);
+    }
+
+    private boolean sameEnvironments(List<Environment> environments) {
+        if (environments.size() != launchEnvironments.size()) return false;
+        for (int i = 0; i < environments.size(); i++) {
+            if (environments.get(i) != launchEnvironments.get(i)) return false;
         }
         return true;
+    }
+
+    /**
+     * @return a cache is leased as a copy private to this build, which a container shared with other builds can't mount
+     */
+    boolean hasPrivateCaches() {
+        if (caches == null) return false;
+        for (CacheVolumes.Lease lease : caches) {
+            if (lease.isPrivate()) return true;
+        }
+        return false;
+    }
+
+    void releaseCaches(boolean success) throws IOException, InterruptedException {
+        if (caches == null) return;
+        for (CacheVolumes.Lease lease : caches) {
+            lease.release(success);
+        }
+        caches.clear();
+    }
+
+    synchronized void recordTiming(String phase, long millis) {
+        if (timings == null) timings = new LinkedHashMap<String, Timing>();
+        Timing timing = timings.get(phase);
+        if (timing == null) {
+            timing = new Timing();
+            timings.put(phase, timing);
+        }
+        timing.add(millis);
+    }
+
+    public synchronized @Nonnull Map<String, Timing> getTimings() {
+        if (timings == null) return Collections.emptyMap();
+        return new LinkedHashMap<String, Timing>(timings);
+    }
+
+    /**
+     * Time spent in a phase, which might run more than once during a build (like launching a command in container).
+     */
+    public static final class Timing {
+        private int count;
+        private long totalMillis;
+        private long maxMillis;
+
+        void add(long millis) {
+            count++;
+            totalMillis += millis;
+            maxMillis = Math.max(maxMillis, millis);
+        }
 
+        public int getCount() {
+            return count;
+        }
+
+        public long getTotalMillis() {
+            return totalMillis;
+        }
+
+        public long getMaxMillis() {
+            return maxMillis;
+        }
+    }
+
+    public ContainerStats getStats() {
+        return stats;
     }
 
     public List<Integer> getPorts() {
@@ -105,8 +269,33 @@ public class BuiltInContainer implements BuildBadgeAction, EnvironmentContributi
         return map;
     }
 
+    /**
+     * Cancel image preparation if build completes before it gets used, like when aborted during SCM checkout, so we
+     * don't keep pulling an image for a dead build.
+     */
+    @Extension
+    public static class PreparationCanceller extends RunListener<AbstractBuild<?, ?>> {
+
+        @Override
+        public void onCompleted(AbstractBuild<?, ?> build, TaskListener listener) {
+            BuiltInContainer container = build.getAction(BuiltInContainer.class);
+            if (container == null) return;
+            Future<String> preparation = container.preparation;
+            if (preparation != null) {
+                container.preparation = null;
+                preparation.cancel(true);
+            }
+        }
+    }
+
     public @Nonnull Map<String, String> getVolumes(AbstractBuild build) throws IOException, InterruptedException {
-        final EnvVars environment = build.getEnvironment(TaskListener.NULL);
+        return getVolumes(build.getEnvironment(TaskListener.NULL));
+    }
+
+    /**
+     * Volumes to mount in container, with variables expanded.
+     */
+    @Nonnull Map<String, String> getVolumes(EnvVars environment) {
         Map<String, String> map = new HashMap<String, String>(volumes);
         for (Map.Entry<String, String> e : volumes.entrySet()) {
             map.put(environment.expand(e.getKey()), environment.expand(e.getValue()));
@@ -0,0 +1,115 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.model.Job;
+import hudson.util.FormValidation;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+
+/**
+ * A persistent directory managed by the plugin on build node, mounted in build container to cache dependencies
+ * (<code>~/.m2</code>, <code>~/.gradle</code>, <code>~/.npm</code>, ...) across builds.
+ */
+public class CacheVolume extends AbstractDescribableImpl<CacheVolume> {
+
+    /**
+     * Caches are directories on build node, so there's no scope shared across nodes: {@link #NODE} is the widest one.
+     */
+    public enum Scope {
+        JOB("This job only"),
+        NODE("All jobs running on the node");
+
+        private final String displayName;
+
+        Scope(String displayName) {
+            this.displayName = displayName;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+    }
+
+    public enum Sharing {
+        LOCKED("Concurrent builds wait for the cache to be released"),
+        COPY_ON_WRITE("Concurrent builds use a private cache rather than waiting");
+
+        private final String displayName;
+
+        Sharing(String displayName) {
+            this.displayName = displayName;
+        }
+
+        public String getDisplayName() {
+            return displayName;
+        }
+    }
+
+    private final String name;
+    private final String path;
+    private final Scope scope;
+    private final Sharing sharing;
+    private final int maxSize;
+
+    /**
+     * @param maxSize size (in MB) above which cache is dropped once build has completed, 0 for no limit
+     */
+    @DataBoundConstructor
+    public CacheVolume(String name, String path, Scope scope, Sharing sharing, int maxSize) {
+        this.name = name;
+        this.path = path;
+        this.scope = scope != null ? scope : Scope.JOB;
+        this.sharing = sharing != null ? sharing : Sharing.LOCKED;
+        this.maxSize = maxSize;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public Scope getScope() {
+        return scope;
+    }
+
+    public Sharing getSharing() {
+        return sharing;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Directory name for this cache on node, unique per scope.
+     */
+    String key(Job<?, ?> job) {
+        String key = scope == Scope.JOB ? "job-" + job.getFullName() + "-" + name : "node-" + name;
+        return key.replaceAll("[^A-Za-z0-9._-]", "_") + "-" + Util.getDigestOf(key).substring(0, 8);
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<CacheVolume> {
+
+        @Override
+        public String getDisplayName() {
+            return "Cache volume";
+        }
+
+        public FormValidation doCheckName(@QueryParameter String value) {
+            if (Util.fixEmptyAndTrim(value) == null) {
+                return FormValidation.error("Cache name is required");
+            }
+            if (!value.trim().matches("[A-Za-z0-9._-]+")) {
+                return FormValidation.error("Cache name can only use letters, digits, '.', '_' and '-'");
+            }
+            return FormValidation.ok();
+        }
+    }
+}
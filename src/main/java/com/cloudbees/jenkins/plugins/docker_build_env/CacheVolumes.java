@@ -0,0 +1,298 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Job;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Storage for {@link CacheVolume}s on build node, as directories under node root. Builds lease a cache directory
+ * to bind mount in build container, and release it once completed.
+ * <p>
+ * With {@link CacheVolume.Sharing#LOCKED} sharing a build gets exclusive access to the cache directory, and
+ * concurrent builds wait for it. With {@link CacheVolume.Sharing#COPY_ON_WRITE} sharing a build also gets the cache
+ * directory if no other build is using it, otherwise a private directory. Private directory starts empty, as the cache
+ * can't be copied consistently while another build writes to it, and becomes the cache if build succeeds and there is
+ * no cache yet.
+ * <p>
+ * Once released, caches larger than their configured size are dropped, and least recently used caches are evicted
+ * to keep node-wide usage under a cap.
+ */
+class CacheVolumes {
+
+    private static final String CACHES = "docker-custom-build-environment/caches";
+
+    private static final long LOCK_TIMEOUT = TimeUnit.MINUTES.toMillis(Integer.getInteger(CacheVolumes.class.getName()+".lockTimeout", 30));
+
+    /** node-wide cap for caches, in MB. 0 to disable eviction */
+    private static final long NODE_CAP = Long.getLong(CacheVolumes.class.getName()+".nodeCap", 20480) * FileUtils.ONE_MB;
+
+    /** caches used more recently than this are never evicted, as a build might be about to use them */
+    private static final long EVICTION_GRACE = TimeUnit.MINUTES.toMillis(10);
+
+    private static final long STALE = TimeUnit.DAYS.toMillis(1);
+
+    private static final ConcurrentMap<String, Semaphore> LOCKS = new ConcurrentHashMap<String, Semaphore>();
+
+    private static final ExecutorService EVICTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Docker build environment cache eviction");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    static Lease acquire(FilePath nodeRoot, CacheVolume cache, Job<?, ?> job, TaskListener listener) throws IOException, InterruptedException {
+        FilePath caches = nodeRoot.child(CACHES);
+        Lease lease = caches.act(new Acquire(cache.key(job), cache.getName(), cache.getSharing(),
+                cache.getMaxSize() * FileUtils.ONE_MB, listener));
+        lease.caches = caches;
+        return lease;
+    }
+
+    /**
+     * A cache directory leased by a build.
+     */
+    static final class Lease implements Serializable {
+        private transient FilePath caches;
+        private final String key;
+        /** host directory to mount in container */
+        final String directory;
+        /** build owns the cache lock */
+        private final boolean exclusive;
+        /** directory is private to this build, and becomes the cache once build succeeded if there's none yet */
+        private final boolean publish;
+        private final long maxSize;
+
+        Lease(String key, String directory, boolean exclusive, boolean publish, long maxSize) {
+            this.key = key;
+            this.directory = directory;
+            this.exclusive = exclusive;
+            this.publish = publish;
+            this.maxSize = maxSize;
+        }
+
+        /**
+         * @return directory is for this build only
+         */
+        boolean isPrivate() {
+            return !exclusive;
+        }
+
+        void release(boolean success) throws IOException, InterruptedException {
+            caches.act(new Release(this, success));
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static Semaphore lock(String key) {
+        Semaphore lock = LOCKS.get(key);
+        if (lock == null) {
+            LOCKS.putIfAbsent(key, new Semaphore(1));
+            lock = LOCKS.get(key);
+        }
+        return lock;
+    }
+
+    private static final class Acquire extends MasterToSlaveFileCallable<Lease> {
+        private final String key;
+        private final String name;
+        private final CacheVolume.Sharing sharing;
+        private final long maxSize;
+        private final TaskListener listener;
+
+        Acquire(String key, String name, CacheVolume.Sharing sharing, long maxSize, TaskListener listener) {
+            this.key = key;
+            this.name = name;
+            this.sharing = sharing;
+            this.maxSize = maxSize;
+            this.listener = listener;
+        }
+
+        @Override
+        public Lease invoke(File caches, VirtualChannel channel) throws IOException, InterruptedException {
+            File cache = new File(caches, key);
+            Semaphore lock = lock(key);
+            if (!lock.tryAcquire()) {
+                if (sharing == CacheVolume.Sharing.COPY_ON_WRITE) {
+                    listener.getLogger().println("Cache volume " + name + " is used by another build, using an empty private cache");
+                    return privateCache(caches, true);
+                }
+                listener.getLogger().println("Waiting for cache volume " + name + " to be released by another build");
+                if (!lock.tryAcquire(LOCK_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    listener.getLogger().println("Cache volume " + name + " still in use, using an empty private cache");
+                    return privateCache(caches, false);
+                }
+            }
+            if (!cache.isDirectory() && !cache.mkdirs()) {
+                lock.release();
+                throw new IOException("Failed to create cache directory " + cache);
+            }
+            cache.setLastModified(System.currentTimeMillis());
+            return new Lease(key, cache.getPath(), true, false, maxSize);
+        }
+
+        /**
+         * Cache directory for this build only. We don't copy the cache, as build holding it might be writing to it.
+         */
+        private Lease privateCache(File caches, boolean publish) throws IOException {
+            File directory = new File(caches, key + "." + UUID.randomUUID() + ".tmp");
+            if (!directory.mkdirs()) {
+                throw new IOException("Failed to create cache directory " + directory);
+            }
+            return new Lease(key, directory.getPath(), false, publish, maxSize);
+        }
+    }
+
+    private static final class Release extends MasterToSlaveFileCallable<Void> {
+        private final Lease lease;
+        private final boolean success;
+
+        Release(Lease lease, boolean success) {
+            this.lease = lease;
+            this.success = success;
+        }
+
+        @Override
+        public Void invoke(File caches, VirtualChannel channel) throws IOException, InterruptedException {
+            Semaphore lock = lock(lease.key);
+            File cache = new File(caches, lease.key);
+            File leased = new File(lease.directory);
+            if (lease.exclusive) {
+                lock.release();
+            } else if (lease.publish && success && lock.tryAcquire()) {
+                try {
+                    // private cache started empty, so is only better than no cache at all
+                    if (!cache.exists() && leased.renameTo(cache)) {
+                        cache.setLastModified(System.currentTimeMillis());
+                        leased = null;
+                    }
+                } finally {
+                    lock.release();
+                }
+                if (leased != null) EVICTOR.submit(new Delete(leased));
+            } else {
+                // failed build, or cache is used by another build: discard private cache
+                EVICTOR.submit(new Delete(leased));
+            }
+            EVICTOR.submit(new Evict(caches, lease.key, lease.maxSize));
+            return null;
+        }
+    }
+
+    private static final class Delete implements Runnable {
+        private final File directory;
+
+        Delete(File directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        public void run() {
+            try {
+                Util.deleteRecursive(directory);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to delete cache directory " + directory, e);
+            }
+        }
+    }
+
+    private static final class Evict implements Runnable {
+        private final File caches;
+        private final String key;
+        private final long maxSize;
+
+        Evict(File caches, String key, long maxSize) {
+            this.caches = caches;
+            this.key = key;
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public void run() {
+            if (maxSize > 0) {
+                File cache = new File(caches, key);
+                if (cache.isDirectory() && FileUtils.sizeOfDirectory(cache) > maxSize) {
+                    drop(cache);
+                }
+            }
+            if (NODE_CAP <= 0) return;
+
+            File[] files = caches.listFiles();
+            if (files == null) return;
+            List<File> entries = new ArrayList<File>();
+            long total = 0;
+            long now = System.currentTimeMillis();
+            for (File file : files) {
+                if (file.getName().endsWith(".tmp") || file.getName().endsWith(".old")) {
+                    // left behind by an agent crash
+                    if (now - file.lastModified() > STALE) new Delete(file).run();
+                    else total += FileUtils.sizeOfDirectory(file);
+                    continue;
+                }
+                if (file.isDirectory()) {
+                    entries.add(file);
+                    total += FileUtils.sizeOfDirectory(file);
+                }
+            }
+            Collections.sort(entries, new Comparator<File>() {
+                @Override
+                public int compare(File a, File b) {
+                    long diff = a.lastModified() - b.lastModified();
+                    return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+                }
+            });
+            for (File cache : entries) {
+                if (total <= NODE_CAP) break;
+                if (now - cache.lastModified() < EVICTION_GRACE) continue;
+                long size = FileUtils.sizeOfDirectory(cache);
+                if (drop(cache)) total -= size;
+            }
+        }
+
+        /**
+         * Delete a cache, unless a build is using it.
+         */
+        private boolean drop(File cache) {
+            Semaphore lock = lock(cache.getName());
+            if (!lock.tryAcquire()) return false;
+            try {
+                File old = new File(caches, cache.getName() + "." + UUID.randomUUID() + ".old");
+                if (!cache.renameTo(old)) return false;
+                LOGGER.log(Level.FINE, "Evicting cache directory {0}", cache);
+                Util.deleteRecursive(old);
+                return true;
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to evict cache directory " + cache, e);
+                return false;
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(CacheVolumes.class.getName());
+}
@@ -0,0 +1,127 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import hudson.model.TaskListener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Output of a docker command, parsed line by line as it is received rather than buffered. Only a bounded tail of the
+ * output is kept, to diagnose a failed command, and lines longer than {@link #MAX_LINE} are truncated.
+ */
+class CommandOutput extends OutputStream {
+
+    private static final int TAIL = Integer.getInteger(CommandOutput.class.getName()+".tail", 4096);
+
+    /** longest line passed to {@link #line(String)}, in bytes. Remaining bytes only go to output tail */
+    private static final int MAX_LINE = Integer.getInteger(CommandOutput.class.getName()+".maxLine", 65536);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** ring buffer for output tail */
+    private final byte[] tail = new byte[TAIL];
+    private long count;
+
+    /** line being received, <code>null</code> when output isn't parsed */
+    private final ByteArrayOutputStream line;
+
+    /**
+     * Only keep output tail.
+     */
+    CommandOutput() {
+        this(false);
+    }
+
+    /**
+     * @param parse call {@link #line(String)} for each line of output
+     */
+    CommandOutput(boolean parse) {
+        this.line = parse ? new ByteArrayOutputStream() : null;
+    }
+
+    /**
+     * Handle a line of output, without line terminator.
+     */
+    protected void line(String line) {
+    }
+
+    @Override
+    public synchronized void write(int b) {
+        if (TAIL > 0) tail[(int) (count % TAIL)] = (byte) b;
+        count++;
+        if (line == null) return;
+        if (b == '\n') {
+            endLine();
+        } else if (line.size() < MAX_LINE) {
+            line.write(b);
+        }
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            write(b[i]);
+        }
+    }
+
+    private void endLine() {
+        String s = new String(line.toByteArray(), UTF8);
+        line.reset();
+        // docker exec --tty terminates lines with CRLF
+        if (s.endsWith("\r")) s = s.substring(0, s.length() - 1);
+        line(s);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (line != null && line.size() > 0) endLine();
+    }
+
+    /**
+     * Last bytes of output, as text.
+     */
+    synchronized String getTail() {
+        int size = (int) Math.min(count, TAIL);
+        byte[] bytes = new byte[size];
+        int start = (int) ((count - size) % Math.max(TAIL, 1));
+        for (int i = 0; i < size; i++) {
+            bytes[i] = tail[(start + i) % TAIL];
+        }
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Report output tail to build log, after command failed.
+     */
+    void dump(TaskListener listener) {
+        String tail = getTail().trim();
+        if (tail.length() == 0) return;
+        if (count > TAIL) listener.getLogger().println("[...]");
+        listener.getLogger().println(tail);
+    }
+
+    /**
+     * Output consisting of a single value, like a container or image ID.
+     */
+    static final class Value extends CommandOutput {
+        private String value;
+
+        Value() {
+            super(true);
+        }
+
+        @Override
+        protected void line(String line) {
+            if (value == null && line.trim().length() > 0) value = line.trim();
+        }
+
+        /**
+         * @return first non blank line of output, <code>null</code> if none
+         */
+        String get() {
+            close();
+            return value;
+        }
+    }
+}
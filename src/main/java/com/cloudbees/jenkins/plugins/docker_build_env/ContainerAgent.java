@@ -0,0 +1,319 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Proc;
+import hudson.remoting.RemoteOutputStream;
+import hudson.remoting.VirtualChannel;
+import jenkins.security.MasterToSlaveCallable;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Resident agent running as the build container main process (in place of <code>/bin/cat</code>), so build steps
+ * can be launched inside container without a <code>docker exec</code> round trip for each of them.
+ * <p>
+ * Agent and Jenkins communicate through a spool directory created in node's tmpdir, which is bind mounted in container
+ * at the same location. Launch requests are sent on a control fifo, process output is relayed from the request directory.
+ */
+class ContainerAgent {
+
+    private static final long POLL_MAX = Long.getLong(ContainerAgent.class.getName()+".pollMax", 50);
+
+    /** agent is considered gone once its heartbeat is older than this, as container has been stopped or killed */
+    private static final long HEARTBEAT_TIMEOUT = TimeUnit.SECONDS.toMillis(Integer.getInteger(ContainerAgent.class.getName()+".heartbeatTimeout", 15));
+
+    private static final FileAttribute<Set<PosixFilePermission>> OWNER_ONLY =
+            PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"));
+
+    private final FilePath spool;
+    private final AtomicInteger requests = new AtomicInteger();
+
+    private ContainerAgent(FilePath spool) {
+        this.spool = spool;
+    }
+
+    /**
+     * Create spool directory and agent script in <code>tmp</code>, which has to be bind mounted in container.
+     */
+    static ContainerAgent install(FilePath tmp) throws IOException, InterruptedException {
+        FilePath spool = tmp.child("dcbep-agent-" + UUID.randomUUID().toString());
+        spool.mkdirs();
+        spool.chmod(0700);
+        InputStream script = ContainerAgent.class.getResourceAsStream("ContainerAgent/agent.sh");
+        try {
+            spool.child("agent.sh").copyFrom(script);
+        } finally {
+            IOUtils.closeQuietly(script);
+        }
+        return new ContainerAgent(spool);
+    }
+
+    /**
+     * Command to run as container main process.
+     */
+    String[] command() {
+        return new String[] { "/bin/sh", spool.child("agent.sh").getRemote(), spool.getRemote() };
+    }
+
+    /**
+     * Wait for agent to be started and listening to launch requests.
+     */
+    void awaitReady(int timeoutSeconds) throws IOException, InterruptedException {
+        FilePath control = spool.child("control");
+        long deadline = System.currentTimeMillis() + timeoutSeconds * 1000L;
+        while (!control.exists()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IOException("Build container agent didn't start within " + timeoutSeconds + " seconds");
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    /**
+     * Can this process be launched by agent ? We don't relay stdin, nor support reading process output from
+     * {@link Proc#getStdout()}.
+     */
+    static boolean supports(Launcher.ProcStarter starter) {
+        return starter.stdin() == null && starter.stdout() != null;
+    }
+
+    Proc launch(Launcher.ProcStarter starter, EnvVars environment) throws IOException {
+        String id = String.valueOf(requests.incrementAndGet());
+        String script = script(starter.cmds(), starter.pwd(), environment);
+        VirtualChannel channel = spool.getChannel();
+        OutputStream out = new RemoteOutputStream(starter.stdout());
+        // like other launchers, stderr is merged into stdout unless caller asked for it
+        OutputStream err = starter.stderr() != null ? new RemoteOutputStream(starter.stderr()) : null;
+        return new AgentProc(channel, spool.getRemote(), id,
+                channel.callAsync(new Run(spool.getRemote(), id, script, out, err)));
+    }
+
+    void cleanup() throws IOException, InterruptedException {
+        spool.deleteRecursive();
+    }
+
+    /**
+     * Shell script to launch a process. Script includes build environment, so deletes itself as soon as shell has
+     * opened it.
+     */
+    static String script(List<String> cmds, FilePath pwd, Map<String, String> environment) {
+        StringBuilder script = new StringBuilder("rm -f \"$0\"\n");
+        if (pwd != null) {
+            // docker exec --workdir fails as well when directory doesn't exist
+            script.append("cd ").append(quote(pwd.getRemote())).append(" || exit 1\n");
+        }
+        script.append("exec env");
+        for (Map.Entry<String, String> e : environment.entrySet()) {
+            script.append(' ').append(quote(e.getKey() + "=" + e.getValue()));
+        }
+        for (String cmd : cmds) {
+            script.append(' ').append(quote(cmd));
+        }
+        return script.append('\n').toString();
+    }
+
+    static String quote(String s) {
+        return "'" + s.replace("'", "'\"'\"'") + "'";
+    }
+
+    /**
+     * Check agent is still running, so we don't wait for a process which will never complete, nor block writing to a
+     * control fifo nobody reads anymore.
+     */
+    static void checkAlive(File spool) throws IOException {
+        // lastModified is 0 when heartbeat is missing
+        if (System.currentTimeMillis() - new File(spool, "alive").lastModified() > HEARTBEAT_TIMEOUT) {
+            throw new IOException("Build container agent isn't running anymore, container might have been stopped");
+        }
+    }
+
+    /**
+     * {@link Proc} for a process launched by the container agent. Output is relayed by a {@link Run} callable running
+     * on node until process completes.
+     */
+    private static class AgentProc extends Proc {
+
+        private final VirtualChannel channel;
+        private final String spool;
+        private final String id;
+        private final Future<Integer> exit;
+
+        AgentProc(VirtualChannel channel, String spool, String id, Future<Integer> exit) {
+            this.channel = channel;
+            this.spool = spool;
+            this.id = id;
+            this.exit = exit;
+        }
+
+        @Override
+        public boolean isAlive() throws IOException, InterruptedException {
+            return !exit.isDone();
+        }
+
+        @Override
+        public void kill() throws IOException, InterruptedException {
+            channel.call(new Control(spool, "kill " + id));
+            join();
+        }
+
+        @Override
+        public int join() throws IOException, InterruptedException {
+            try {
+                return exit.get();
+            } catch (InterruptedException e) {
+                channel.call(new Control(spool, "kill " + id));
+                throw e;
+            } catch (ExecutionException e) {
+                throw new IOException("Failed to run process in build container", e.getCause());
+            }
+        }
+
+        @Override
+        public InputStream getStdout() {
+            return null;
+        }
+
+        @Override
+        public InputStream getStderr() {
+            return null;
+        }
+
+        @Override
+        public OutputStream getStdin() {
+            return null;
+        }
+    }
+
+    /**
+     * Write a request on agent's control fifo.
+     */
+    private static final class Control extends MasterToSlaveCallable<Void, IOException> {
+        private final String spool;
+        private final String request;
+
+        Control(String spool, String request) {
+            this.spool = spool;
+            this.request = request;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            checkAlive(new File(spool));
+            // requests are shorter than PIPE_BUF, so concurrent writes don't interleave
+            FileOutputStream control = new FileOutputStream(new File(spool, "control"), true);
+            try {
+                control.write((request + "\n").getBytes("UTF-8"));
+            } finally {
+                control.close();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Submit a launch request to agent, then relay process output until it completes.
+     */
+    private static final class Run extends MasterToSlaveCallable<Integer, IOException> {
+        private final String spool;
+        private final String id;
+        private final String script;
+        private final OutputStream out;
+        /** <code>null</code> to merge stderr into {@link #out} */
+        private final OutputStream err;
+
+        Run(String spool, String id, String script, OutputStream out, OutputStream err) {
+            this.spool = spool;
+            this.id = id;
+            this.script = script;
+            this.out = out;
+            this.err = err;
+        }
+
+        @Override
+        public Integer call() throws IOException {
+            File dir = new File(spool, id);
+            if (!dir.mkdir()) throw new IOException("Failed to create " + dir);
+            // script holds build environment, including secrets, so is only readable by build user
+            Files.write(Files.createFile(new File(dir, "run").toPath(), OWNER_ONLY), script.getBytes("UTF-8"));
+            File output = new File(dir, "out");
+            File error = new File(dir, "err");
+            // agent redirects stderr to this file if it exists
+            if (err != null && !error.createNewFile()) throw new IOException("Failed to create " + error);
+            new Control(spool, "run " + id).call();
+
+            File exit = new File(dir, "exit");
+            byte[] buffer = new byte[8192];
+            long outPosition = 0, errPosition = 0;
+            long poll = 1;
+            try {
+                while (true) {
+                    // check for completion first, so we know output is complete once exit file exists
+                    boolean completed = exit.exists();
+                    long read = -outPosition - errPosition;
+                    outPosition = relay(output, outPosition, out, buffer);
+                    if (err != null) errPosition = relay(error, errPosition, err, buffer);
+                    read += outPosition + errPosition;
+                    if (completed) break;
+                    checkAlive(new File(spool));
+                    if (read > 0) {
+                        out.flush();
+                        if (err != null) err.flush();
+                        poll = 1;
+                    } else {
+                        poll = Math.min(poll * 2, POLL_MAX);
+                    }
+                    Thread.sleep(poll);
+                }
+                out.flush();
+                if (err != null) err.flush();
+                return Integer.parseInt(FileUtils.readFileToString(exit, "UTF-8").trim());
+            } catch (InterruptedException e) {
+                new Control(spool, "kill " + id).call();
+                throw new IOException("Interrupted while waiting for process completion", e);
+            } finally {
+                FileUtils.deleteQuietly(dir);
+            }
+        }
+
+        /**
+         * Copy content appended to file since last position.
+         * @return new position
+         */
+        private static long relay(File file, long position, OutputStream out, byte[] buffer) throws IOException {
+            if (!file.exists()) return position;
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                raf.seek(position);
+                int n;
+                while ((n = raf.read(buffer)) > 0) {
+                    out.write(buffer, 0, n);
+                    position += n;
+                }
+            } finally {
+                raf.close();
+            }
+            return position;
+        }
+    }
+}
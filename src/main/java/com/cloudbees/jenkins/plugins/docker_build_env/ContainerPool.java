@@ -0,0 +1,195 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import jenkins.model.Jenkins;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pool of pre-started idle containers, so a build can claim a warm container rather than waiting for a new one to
+ * start. Containers are pooled by docker daemon and container specification (image, mounts, resource limits, ...),
+ * and don't include build specific environment, which is passed when executing commands.
+ * <p>
+ * Pool is refilled in background after a container has been claimed, and idle containers are removed after a timeout.
+ * Pooled containers are labelled with the controller which started them, so the ones left behind by a controller
+ * restart are removed when pool is first refilled on their daemon.
+ */
+class ContainerPool {
+
+    /** identifies containers pooled by this controller */
+    private static final String OWNER_LABEL = "jenkins-pool";
+
+    /** identifies containers pooled since controller started */
+    private static final String SESSION_LABEL = "jenkins-pool-session";
+
+    private static final String SESSION = UUID.randomUUID().toString();
+
+    /** daemons which have been checked for containers pooled before controller restart */
+    private static final Set<String> SWEPT = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private static final ConcurrentMap<String, Deque<PooledContainer>> POOL = new ConcurrentHashMap<String, Deque<PooledContainer>>();
+
+    private static final ConcurrentMap<String, AtomicInteger> PENDING = new ConcurrentHashMap<String, AtomicInteger>();
+
+    /**
+     * Claim an idle container for this specification.
+     * @return container ID, <code>null</code> if pool is empty
+     */
+    static String claim(String key) throws IOException, InterruptedException {
+        Deque<PooledContainer> pool = POOL.get(key);
+        if (pool == null) return null;
+        PooledContainer pooled;
+        while ((pooled = pool.pollFirst()) != null) {
+            try {
+                if (pooled.docker.isRunning(pooled.container)) {
+                    return pooled.container;
+                }
+                pooled.docker.remove(pooled.container);
+            } finally {
+                pooled.docker.close();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Number of containers we need to start so pool gets back to the expected size, accounting for the ones being
+     * started already. Caller is responsible to {@link #offer(String, Docker, String, long)} the same number of
+     * containers, or {@link #abort(String)} them.
+     */
+    static int reserve(String key, int size) {
+        AtomicInteger pending = pending(key);
+        synchronized (pending) {
+            Deque<PooledContainer> pool = POOL.get(key);
+            int missing = size - (pool != null ? pool.size() : 0) - pending.get();
+            if (missing <= 0) return 0;
+            pending.addAndGet(missing);
+            return missing;
+        }
+    }
+
+    static void offer(String key, Docker docker, String container, long idleTimeout) {
+        Deque<PooledContainer> pool = POOL.get(key);
+        if (pool == null) {
+            POOL.putIfAbsent(key, new LinkedBlockingDeque<PooledContainer>());
+            pool = POOL.get(key);
+        }
+        // container might outlive the build which started it
+        docker.retain();
+        pool.offerLast(new PooledContainer(docker, container, System.currentTimeMillis() + idleTimeout));
+        pending(key).decrementAndGet();
+    }
+
+    static void abort(String key) {
+        pending(key).decrementAndGet();
+    }
+
+    /**
+     * Labels for pooled containers.
+     */
+    static Map<String, String> labels() {
+        Map<String, String> labels = new HashMap<String, String>();
+        labels.put(OWNER_LABEL, owner());
+        labels.put(SESSION_LABEL, SESSION);
+        return labels;
+    }
+
+    private static String owner() {
+        Jenkins jenkins = Jenkins.getInstance();
+        return jenkins != null ? jenkins.getLegacyInstanceId() : "";
+    }
+
+    /**
+     * Remove containers this controller pooled on docker daemon before it restarted, as they aren't tracked anymore.
+     * Only runs once per daemon.
+     */
+    static void sweep(Docker docker) {
+        String daemon = docker.daemonKey();
+        if (!SWEPT.add(daemon)) return;
+        try {
+            for (Map.Entry<String, String> container : docker.listContainers(OWNER_LABEL + "=" + owner(), SESSION_LABEL).entrySet()) {
+                if (SESSION.equals(container.getValue())) continue;
+                LOGGER.log(Level.FINE, "Removing container {0} pooled before restart", container.getKey());
+                docker.remove(container.getKey());
+            }
+        } catch (Exception e) {
+            SWEPT.remove(daemon);
+            LOGGER.log(Level.FINE, "Failed to remove containers pooled before restart on " + daemon, e);
+        }
+    }
+
+    private static AtomicInteger pending(String key) {
+        AtomicInteger pending = PENDING.get(key);
+        if (pending == null) {
+            PENDING.putIfAbsent(key, new AtomicInteger());
+            pending = PENDING.get(key);
+        }
+        return pending;
+    }
+
+    private static final class PooledContainer {
+        /** Docker client used to start this container, which we reuse to remove it once expired */
+        private final Docker docker;
+        private final String container;
+        private final long expires;
+
+        PooledContainer(Docker docker, String container, long expires) {
+            this.docker = docker;
+            this.container = container;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * Remove idle containers which have been pooled for longer than configured timeout.
+     */
+    @Extension
+    public static class Evictor extends AsyncPeriodicWork {
+
+        public Evictor() {
+            super("Docker build environment container pool eviction");
+        }
+
+        @Override
+        public long getRecurrencePeriod() {
+            return TimeUnit.MINUTES.toMillis(1);
+        }
+
+        @Override
+        protected void execute(TaskListener listener) throws IOException, InterruptedException {
+            long now = System.currentTimeMillis();
+            for (Map.Entry<String, Deque<PooledContainer>> entry : POOL.entrySet()) {
+                for (Iterator<PooledContainer> it = entry.getValue().iterator(); it.hasNext();) {
+                    PooledContainer pooled = it.next();
+                    if (pooled.expires > now) continue;
+                    if (!entry.getValue().remove(pooled)) continue; // claimed meanwhile
+                    try {
+                        pooled.docker.remove(pooled.container);
+                    } catch (Exception e) {
+                        LOGGER.log(Level.WARNING, "Failed to remove idle container " + pooled.container, e);
+                    } finally {
+                        pooled.docker.close();
+                    }
+                }
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ContainerPool.class.getName());
+}
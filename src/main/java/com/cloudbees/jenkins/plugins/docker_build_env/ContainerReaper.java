@@ -0,0 +1,133 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import jenkins.util.Timer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Remove build containers in background once build has completed, so the executor is released without waiting for
+ * daemon to stop container and delete its writable layer. Containers are removed in batches per Docker daemon, and
+ * failed removals are retried.
+ */
+class ContainerReaper {
+
+    private static final int MAX_ATTEMPTS = 3;
+
+    private static final int BATCH_SIZE = 20;
+
+    private static final long RETRY_DELAY = TimeUnit.SECONDS.toMillis(10);
+
+    private static final ConcurrentMap<String, Reaper> REAPERS = new ConcurrentHashMap<String, Reaper>();
+
+    /**
+     * Schedule container removal.
+     * @param docker docker client the container has been started with
+     */
+    static void submit(Docker docker, String container) {
+        String daemon = docker.daemonKey();
+        Reaper reaper = REAPERS.get(daemon);
+        if (reaper == null) {
+            REAPERS.putIfAbsent(daemon, new Reaper());
+            reaper = REAPERS.get(daemon);
+        }
+        // removal completes after build, which would otherwise release docker credentials
+        docker.retain();
+        reaper.add(new Pending(docker, container, 1));
+    }
+
+    private static void release(Pending pending) {
+        try {
+            pending.docker.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to release Docker credentials", e);
+        }
+    }
+
+    private static final class Pending {
+        private final Docker docker;
+        private final String container;
+        private final int attempt;
+
+        Pending(Docker docker, String container, int attempt) {
+            this.docker = docker;
+            this.container = container;
+            this.attempt = attempt;
+        }
+    }
+
+    private static final class Reaper implements Runnable {
+        private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<Pending>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        void add(Pending pending) {
+            queue.add(pending);
+            schedule();
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                Timer.get().submit(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                List<Pending> batch = new ArrayList<Pending>();
+                while (queue.drainTo(batch, BATCH_SIZE) > 0) {
+                    reap(batch);
+                    batch.clear();
+                }
+            } finally {
+                scheduled.set(false);
+                if (!queue.isEmpty()) schedule();
+            }
+        }
+
+        private void reap(List<Pending> batch) {
+            List<String> containers = new ArrayList<String>(batch.size());
+            for (Pending pending : batch) {
+                containers.add(pending.container);
+            }
+            // all containers in batch run on the same daemon, so any of the docker clients can remove them all
+            Docker docker = batch.get(batch.size() - 1).docker;
+            List<String> failed;
+            try {
+                failed = docker.removeAll(containers);
+            } catch (Exception e) {
+                LOGGER.log(Level.FINE, "Failed to remove containers " + containers, e);
+                failed = containers;
+            }
+
+            for (final Pending pending : batch) {
+                if (!failed.contains(pending.container)) {
+                    release(pending);
+                    continue;
+                }
+                if (pending.attempt >= MAX_ATTEMPTS) {
+                    LOGGER.log(Level.WARNING, "Failed to remove docker container {0}", pending.container);
+                    release(pending);
+                    continue;
+                }
+                Timer.get().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        add(new Pending(pending.docker, pending.container, pending.attempt + 1));
+                    }
+                }, RETRY_DELAY * pending.attempt, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ContainerReaper.class.getName());
+}
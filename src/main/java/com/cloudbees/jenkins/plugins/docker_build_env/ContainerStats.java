@@ -0,0 +1,256 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import hudson.Functions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Resource usage of the build container (CPU, memory, block and network I/O), sampled while the build runs. Series
+ * is kept compact: once it reaches {@link #MAX_SAMPLES}, consecutive samples are merged so a long build ends up with
+ * a lower resolution rather than a larger build record.
+ */
+public class ContainerStats {
+
+    static final int MAX_SAMPLES = 240;
+
+    static final String FORMAT = "{{.CPUPerc}}|{{.MemUsage}}|{{.BlockIO}}|{{.NetIO}}";
+
+    private static final Pattern SIZE = Pattern.compile("([0-9.]+)\\s*([kKMGTP]?i?B)?");
+
+    /** seconds to wait for an unresponsive daemon, so a sample doesn't delay the next ones forever */
+    private static final int TIMEOUT = Integer.getInteger(ContainerStats.class.getName()+".timeout", 10);
+
+    /** sampling blocks on docker CLI, so doesn't run on Jenkins shared timer */
+    private static final ScheduledExecutorService SAMPLERS = Executors.newScheduledThreadPool(
+            Integer.getInteger(ContainerStats.class.getName()+".threads", 2), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Docker build environment container stats");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /** chart dimensions, in pixels */
+    private static final int WIDTH = 600, HEIGHT = 100;
+
+    private final long start;
+    private final List<Sample> samples = new ArrayList<Sample>();
+    /** container memory limit, host memory if not set */
+    private long memoryLimit;
+
+    ContainerStats(long start) {
+        this.start = start;
+    }
+
+    /**
+     * Sample container resource usage periodically, until returned future is cancelled.
+     */
+    static ScheduledFuture<?> sample(final Docker docker, final String container, final ContainerStats stats, int interval) {
+        return SAMPLERS.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    String line = docker.stats(container, FORMAT, TIMEOUT);
+                    if (line != null) stats.add(System.currentTimeMillis(), line);
+                } catch (Exception e) {
+                    LOGGER.log(Level.FINE, "Failed to sample stats for container " + container, e);
+                }
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @param line <code>docker stats</code> output, as {@link #FORMAT}
+     */
+    synchronized void add(long timestamp, String line) {
+        String[] fields = line.split("\\|");
+        if (fields.length < 4) return;
+        String[] memory = fields[1].split("/");
+        String[] block = fields[2].split("/");
+        String[] net = fields[3].split("/");
+        if (memory.length < 2 || block.length < 2 || net.length < 2) return;
+
+        Sample sample = new Sample();
+        sample.time = (int) TimeUnit.MILLISECONDS.toSeconds(timestamp - start);
+        sample.cpu = parsePercent(fields[0]);
+        sample.memory = parseSize(memory[0]);
+        sample.blockRead = parseSize(block[0]);
+        sample.blockWrite = parseSize(block[1]);
+        sample.netReceived = parseSize(net[0]);
+        sample.netSent = parseSize(net[1]);
+        memoryLimit = parseSize(memory[1]);
+        samples.add(sample);
+
+        if (samples.size() >= MAX_SAMPLES) {
+            compact();
+        }
+    }
+
+    /**
+     * Merge consecutive samples. CPU is averaged, memory keeps the peak value, and I/O counters are cumulative so
+     * keep the later one.
+     */
+    private void compact() {
+        List<Sample> compacted = new ArrayList<Sample>(samples.size() / 2 + 1);
+        for (int i = 0; i + 1 < samples.size(); i += 2) {
+            Sample a = samples.get(i), b = samples.get(i + 1);
+            b.cpu = (a.cpu + b.cpu) / 2;
+            b.memory = Math.max(a.memory, b.memory);
+            compacted.add(b);
+        }
+        if (samples.size() % 2 == 1) compacted.add(samples.get(samples.size() - 1));
+        samples.clear();
+        samples.addAll(compacted);
+    }
+
+    static float parsePercent(String value) {
+        try {
+            return Float.parseFloat(value.trim().replace("%", ""));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Parse a size as reported by docker CLI, like <code>1.5GiB</code> or <code>648kB</code>.
+     */
+    static long parseSize(String value) {
+        Matcher m = SIZE.matcher(value.trim());
+        if (!m.matches()) return 0;
+        double size = Double.parseDouble(m.group(1));
+        String unit = m.group(2);
+        if (unit == null || unit.length() <= 1) return (long) size;
+        int exponent = "KMGTP".indexOf(Character.toUpperCase(unit.charAt(0))) + 1;
+        double base = unit.contains("i") ? 1024 : 1000;
+        return (long) (size * Math.pow(base, exponent));
+    }
+
+    public synchronized boolean isEmpty() {
+        return samples.isEmpty();
+    }
+
+    public synchronized float getAverageCpu() {
+        if (samples.isEmpty()) return 0;
+        float total = 0;
+        for (Sample sample : samples) total += sample.cpu;
+        return total / samples.size();
+    }
+
+    public synchronized float getPeakCpu() {
+        float peak = 0;
+        for (Sample sample : samples) peak = Math.max(peak, sample.cpu);
+        return peak;
+    }
+
+    public synchronized long getPeakMemory() {
+        long peak = 0;
+        for (Sample sample : samples) peak = Math.max(peak, sample.memory);
+        return peak;
+    }
+
+    public synchronized long getMemoryLimit() {
+        return memoryLimit;
+    }
+
+    private synchronized Sample last() {
+        return samples.isEmpty() ? new Sample() : samples.get(samples.size() - 1);
+    }
+
+    public long getBlockRead() {
+        return last().blockRead;
+    }
+
+    public long getBlockWrite() {
+        return last().blockWrite;
+    }
+
+    public long getNetReceived() {
+        return last().netReceived;
+    }
+
+    public long getNetSent() {
+        return last().netSent;
+    }
+
+    public String getDuration() {
+        return Functions.getTimeSpanString(TimeUnit.SECONDS.toMillis(last().time));
+    }
+
+    /**
+     * Human readable size, for display.
+     */
+    public static String format(long bytes) {
+        if (bytes < 1024) return bytes + " B";
+        int exponent = (int) (Math.log(bytes) / Math.log(1024));
+        return String.format(Locale.ENGLISH, "%.1f %siB", bytes / Math.pow(1024, exponent), "KMGTP".charAt(exponent - 1));
+    }
+
+    public static String percent(float value) {
+        return String.format(Locale.ENGLISH, "%.1f%%", value);
+    }
+
+    public int getChartWidth() {
+        return WIDTH;
+    }
+
+    public int getChartHeight() {
+        return HEIGHT;
+    }
+
+    /**
+     * CPU usage as SVG polyline points, scaled to the peak usage (at least one core).
+     */
+    public synchronized String getCpuPoints() {
+        float max = Math.max(100, getPeakCpu());
+        StringBuilder points = new StringBuilder();
+        int duration = Math.max(1, last().time);
+        for (Sample sample : samples) {
+            point(points, sample.time, duration, sample.cpu / max);
+        }
+        return points.toString();
+    }
+
+    /**
+     * Memory usage as SVG polyline points, scaled to the container memory limit.
+     */
+    public synchronized String getMemoryPoints() {
+        double max = Math.max(1, Math.max(memoryLimit, getPeakMemory()));
+        StringBuilder points = new StringBuilder();
+        int duration = Math.max(1, last().time);
+        for (Sample sample : samples) {
+            point(points, sample.time, duration, sample.memory / max);
+        }
+        return points.toString();
+    }
+
+    private static void point(StringBuilder points, int time, int duration, double ratio) {
+        if (points.length() > 0) points.append(' ');
+        points.append(time * WIDTH / duration).append(',').append(Math.round(HEIGHT * (1 - ratio)));
+    }
+
+    private static final class Sample {
+        /** seconds since container started */
+        private int time;
+        /** CPU usage, in percent of one core */
+        private float cpu;
+        private long memory;
+        private long blockRead;
+        private long blockWrite;
+        private long netReceived;
+        private long netSent;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ContainerStats.class.getName());
+}
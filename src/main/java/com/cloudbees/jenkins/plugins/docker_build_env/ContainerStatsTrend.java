@@ -0,0 +1,52 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Container resource usage for recent builds of a job, so memory and CPU limits can be sized from actual usage.
+ */
+public class ContainerStatsTrend implements Action {
+
+    private static final int BUILDS = 20;
+
+    private final AbstractProject<?, ?> job;
+
+    ContainerStatsTrend(AbstractProject<?, ?> job) {
+        this.job = job;
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "Docker container resource usage";
+    }
+
+    public String getUrlName() {
+        return null;
+    }
+
+    /**
+     * Recent builds having container stats, most recent first.
+     */
+    public List<AbstractBuild<?, ?>> getBuilds() {
+        List<AbstractBuild<?, ?>> builds = new ArrayList<AbstractBuild<?, ?>>();
+        for (AbstractBuild<?, ?> build = job.getLastCompletedBuild(); build != null && builds.size() < BUILDS; build = build.getPreviousCompletedBuild()) {
+            BuiltInContainer container = build.getAction(BuiltInContainer.class);
+            if (container != null && container.getStats() != null && !container.getStats().isEmpty()) {
+                builds.add(build);
+            }
+        }
+        return builds;
+    }
+
+    public ContainerStats getStats(AbstractBuild<?, ?> build) {
+        return build.getAction(BuiltInContainer.class).getStats();
+    }
+}
@@ -0,0 +1,79 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import hudson.model.TaskListener;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limit concurrent operations of a kind (image pull, image build, container start) on a docker daemon, so a burst of
+ * builds queues rather than thrashing the daemon. Builds are admitted in arrival order for each kind of operation.
+ */
+class DaemonAdmission {
+
+    private static final ConcurrentMap<String, Slots> SLOTS = new ConcurrentHashMap<String, Slots>();
+
+    /**
+     * Wait for a slot to run operation on daemon.
+     * @param limit maximum concurrent operations of this kind, 0 for no limit
+     */
+    static Permit acquire(String daemon, String operation, int limit, TaskListener listener) throws InterruptedException {
+        if (limit <= 0) return new Permit(null, 0);
+        String key = daemon + "|" + operation;
+        Slots slots = SLOTS.get(key);
+        if (slots == null) {
+            SLOTS.putIfAbsent(key, new Slots(limit));
+            slots = SLOTS.get(key);
+        }
+        slots.resize(limit);
+        // tryAcquire() would barge in front of queued builds
+        if (slots.tryAcquire(0, TimeUnit.SECONDS)) return new Permit(slots, 0);
+
+        listener.getLogger().println("Waiting for Docker daemon to run " + operation + " (" + limit + " running, "
+                + slots.getQueueLength() + " builds queued)");
+        long start = System.nanoTime();
+        slots.acquire();
+        return new Permit(slots, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * Slots for an operation on a daemon, resized when limit is reconfigured. Operations running when limit is lowered
+     * complete, and new ones wait until running operations fit in the new limit.
+     */
+    private static final class Slots extends Semaphore {
+        private int limit;
+
+        Slots(int limit) {
+            super(limit, true);
+            this.limit = limit;
+        }
+
+        synchronized void resize(int limit) {
+            if (limit > this.limit) {
+                release(limit - this.limit);
+            } else if (limit < this.limit) {
+                reducePermits(this.limit - limit);
+            }
+            this.limit = limit;
+        }
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    static final class Permit {
+        private final Semaphore slots;
+        /** time spent waiting in queue, in milliseconds */
+        final long waited;
+
+        Permit(Semaphore slots, long waited) {
+            this.slots = slots;
+            this.waited = waited;
+        }
+
+        void release() {
+            if (slots != null) slots.release();
+        }
+    }
+}
@@ -1,16 +1,31 @@
 package com.cloudbees.jenkins.plugins.docker_build_env;
 
+import com.cloudbees.plugins.credentials.CredentialsMatchers;
+import com.cloudbees.plugins.credentials.CredentialsProvider;
+import com.cloudbees.plugins.credentials.common.StandardCredentials;
+import com.cloudbees.plugins.credentials.domains.DomainRequirement;
 import hudson.EnvVars;
 import hudson.FilePath;
 import hudson.Launcher;
+import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.Computer;
+import hudson.model.Item;
+import hudson.model.Node;
 import hudson.model.TaskListener;
+import hudson.security.ACL;
 import hudson.util.ArgumentListBuilder;
-import org.apache.commons.io.LineIterator;
+import hudson.util.LogTaskListener;
+import jenkins.authentication.tokens.api.AuthenticationTokens;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+import net.sf.json.JSONSerializer;
 import org.apache.commons.lang.StringUtils;
 
 import org.jenkinsci.plugins.docker.commons.credentials.DockerRegistryEndpoint;
+import org.jenkinsci.plugins.docker.commons.credentials.DockerRegistryToken;
+import org.jenkinsci.plugins.docker.commons.credentials.DockerServerCredentials;
 import org.jenkinsci.plugins.docker.commons.credentials.DockerServerEndpoint;
 import org.jenkinsci.plugins.docker.commons.credentials.KeyMaterial;
 import org.jenkinsci.plugins.docker.commons.tools.DockerTool;
@@ -19,15 +34,17 @@ import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.StringReader;
-import java.net.Inet4Address;
-import java.net.InetAddress;
-import java.net.InterfaceAddress;
-import java.net.NetworkInterface;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * @author <a href="mailto:nicolas.deloof@gmail.com">Nicolas De Loof</a>
@@ -43,147 +60,681 @@ public class Docker implements Closeable {
     private final boolean verbose;
     private final boolean privileged;
     private final AbstractBuild build;
+    private final boolean useEngineApi;
+    /**
+     * build environment, computed on executor thread as node environment and node properties variables are missing
+     * when computed from the background threads this client is also used from
+     */
+    private final EnvVars buildEnvironment;
+    /** client this one has been {@link #detached(Map) detached} from, <code>null</code> for build's own client */
+    private final Docker parent;
+    /** labels for containers started by this client */
+    private final Map<String, String> containerLabels;
     private EnvVars envVars;
+    private DockerEngineApi api;
+    /** daemon endpoint to check image presence against node-wide {@link DockerImagePresence} index */
+    private String imageIndex;
 
-    public Docker(DockerServerEndpoint dockerHost, String dockerInstallation, String credentialsId, AbstractBuild build, Launcher launcher, TaskListener listener, boolean verbose, boolean privileged) throws IOException, InterruptedException {
+    public Docker(DockerServerEndpoint dockerHost, String dockerInstallation, String credentialsId, AbstractBuild build, Launcher launcher, TaskListener listener, boolean verbose, boolean privileged, boolean useEngineApi) throws IOException, InterruptedException {
+        this(dockerHost, dockerInstallation, credentialsId, null, build, launcher, listener, verbose, privileged, useEngineApi);
+    }
+
+    /**
+     * @param registryUrl registry to login with <code>credentialsId</code>, <code>null</code> for Docker Hub
+     */
+    public Docker(DockerServerEndpoint dockerHost, String dockerInstallation, String credentialsId, String registryUrl, AbstractBuild build, Launcher launcher, TaskListener listener, boolean verbose, boolean privileged, boolean useEngineApi) throws IOException, InterruptedException {
         this.dockerHost = dockerHost;
-        this.dockerExecutable = DockerTool.getExecutable(dockerInstallation, Computer.currentComputer().getNode(), listener, build.getEnvironment(listener));
-        this.registryEndpoint = new DockerRegistryEndpoint(null, credentialsId);
+        this.buildEnvironment = build.getEnvironment(listener);
+        this.dockerExecutable = DockerTool.getExecutable(dockerInstallation, Computer.currentComputer().getNode(), listener, buildEnvironment);
+        this.registryEndpoint = new DockerRegistryEndpoint(registryUrl, credentialsId);
         this.launcher = launcher;
         this.listener = listener;
         this.build = build;
         this.verbose = verbose | debug;
         this.privileged = privileged;
+        this.useEngineApi = useEngineApi;
+        this.parent = null;
+        this.containerLabels = Collections.emptyMap();
+    }
+
+    private Docker(Docker parent, Map<String, String> containerLabels) {
+        this.dockerHost = parent.dockerHost;
+        this.buildEnvironment = parent.buildEnvironment;
+        this.dockerExecutable = parent.dockerExecutable;
+        this.registryEndpoint = parent.registryEndpoint;
+        this.launcher = parent.launcher;
+        this.listener = new LogTaskListener(LOGGER, Level.FINE);
+        this.build = parent.build;
+        this.verbose = false;
+        this.privileged = parent.privileged;
+        this.useEngineApi = parent.useEngineApi;
+        this.parent = parent;
+        this.containerLabels = containerLabels;
+        synchronized (parent) {
+            this.dockerEnv = parent.dockerEnv;
+        }
+        this.imageIndex = parent.imageIndex;
+        this.dockerhost = parent.dockerhost;
+    }
+
+    /**
+     * Client for background operations on behalf of this build (container pool refill), which might run after build
+     * has completed. Those are reported to Jenkins log rather than build log, and aren't recorded as build timings.
+     * Credentials material is shared with this client, so detached client has to be {@link #close() closed}.
+     * @param containerLabels labels for containers started by detached client
+     */
+    Docker detached(Map<String, String> containerLabels) throws IOException, InterruptedException {
+        retain();
+        Docker detached = new Docker(this, containerLabels);
+        if (api != null) {
+            detached.api = DockerEngineApi.create(dockerHost, detached.getEnvVars(), launcher.getChannel(), detached.listener, false);
+        }
+        return detached;
+    }
+
+
+    private KeyMaterialCache.Lease dockerEnv;
+
+    /** dockerhost IP, resolved once per build */
+    private volatile String dockerhost;
+
+    public synchronized void setupCredentials(final AbstractBuild build) throws IOException, InterruptedException {
+        if (dockerEnv != null) {
+            // already materialized, maybe while SCM checkout was running
+            return;
+        }
+        long start = System.nanoTime();
+        KeyMaterialCache.Materializer materializer = new KeyMaterialCache.Materializer() {
+            @Override
+            public KeyMaterial materialize() throws IOException, InterruptedException {
+                return dockerHost.newKeyMaterialFactory(build)
+                        .plus(   registryEndpoint.newKeyMaterialFactory(build))
+                        .materialize();
+            }
+        };
+        String key = credentialsKey(build);
+        KeyMaterialCache.Lease lease = KeyMaterialCache.acquire(key, listener, materializer);
+        if (!exists(lease.env())) {
+            // deleted from node temporary directory since it was written
+            lease.invalidate();
+            lease = KeyMaterialCache.acquire(key, listener, materializer);
+        }
+        this.dockerEnv = lease;
+        recordTiming("credentials", start);
+
+        if (useEngineApi) {
+            this.api = DockerEngineApi.create(dockerHost, getEnvVars(), launcher.getChannel(), listener, verbose);
+            if (api == null) {
+                listener.getLogger().println("Docker Engine API isn't supported for this Docker host, falling back to docker CLI");
+            } else {
+                // image presence index relies on daemon API, so only used by builds which opted in for it
+                this.imageIndex = api.getEndpoint();
+            }
+        }
     }
 
 
-    private KeyMaterial dockerEnv;
+    /**
+     * @return <code>false</code> if files credentials material refers to are missing on build node
+     */
+    private boolean exists(EnvVars material) throws IOException, InterruptedException {
+        for (String variable : new String[] {"DOCKER_CERT_PATH", "DOCKER_CONFIG"}) {
+            String path = material.get(variable);
+            if (path != null && !new FilePath(launcher.getChannel(), path).exists()) return false;
+        }
+        return true;
+    }
 
-    public void setupCredentials(AbstractBuild build) throws IOException, InterruptedException {
-        this.dockerEnv = dockerHost.newKeyMaterialFactory(build)
-                .plus(   registryEndpoint.newKeyMaterialFactory(build))
-                .materialize();
+    /**
+     * Identify credentials material this build needs on its node, for builds to share it. Node connection time is
+     * part of the key, as material written before agent reconnected might be gone with agent temporary directory.
+     * @return <code>null</code> if credentials content can't be fingerprinted, so material isn't shared
+     */
+    private String credentialsKey(AbstractBuild build) {
+        String server = fingerprint(dockerHost.getCredentialsId(), build.getParent());
+        String registry = fingerprint(registryEndpoint.getCredentialsId(), build.getParent());
+        if (server == null || registry == null) return null;
+        Node node = build.getBuiltOn();
+        Computer computer = node != null ? node.toComputer() : null;
+        if (computer == null) return null;
+        return daemonKey() + "|" + computer.getConnectTime() + "|" + dockerExecutable + "|" + dockerHost.getCredentialsId() + "|" + server
+                + "|" + registryEndpoint.getUrl() + "|" + registryEndpoint.getCredentialsId() + "|" + registry;
     }
 
+    /**
+     * Digest of credentials content, so material isn't reused once credentials have been updated.
+     */
+    private static String fingerprint(String credentialsId, Item context) {
+        if (StringUtils.isEmpty(credentialsId)) return "";
+        StandardCredentials credentials = CredentialsMatchers.firstOrNull(
+                CredentialsProvider.lookupCredentials(StandardCredentials.class, context, ACL.SYSTEM, Collections.<DomainRequirement>emptyList()),
+                CredentialsMatchers.withId(credentialsId));
+        if (credentials == null) return "";
+
+        StringBuilder content = new StringBuilder(credentials.getClass().getName());
+        if (credentials instanceof DockerServerCredentials) {
+            DockerServerCredentials server = (DockerServerCredentials) credentials;
+            content.append('|').append(server.getClientKey())
+                   .append('|').append(server.getClientCertificate())
+                   .append('|').append(server.getServerCaCertificate());
+        } else {
+            DockerRegistryToken token = AuthenticationTokens.convert(DockerRegistryToken.class, credentials);
+            if (token == null) return null;
+            content.append('|').append(token.getEmail()).append('|').append(token.getToken());
+        }
+        return Util.getDigestOf(content.toString());
+    }
+
+    /** background users of this client (container pool, image collection) which outlive the build */
+    private int retained;
+
+    /**
+     * Keep credentials material available for background use of this client once build has completed, until a
+     * matching {@link #close()}.
+     */
+    synchronized void retain() {
+        retained++;
+    }
 
     @Override
     public void close() throws IOException {
-        dockerEnv.close();
+        KeyMaterialCache.Lease lease;
+        synchronized (this) {
+            if (retained > 0) {
+                retained--;
+                return;
+            }
+            lease = dockerEnv;
+        }
+        if (parent != null) {
+            parent.close();
+            return;
+        }
+        if (lease != null) lease.close();
     }
 
     public boolean hasImage(String image) throws IOException, InterruptedException {
-        ArgumentListBuilder args = dockerCommand()
-            .add("inspect", image);
+        long start = System.nanoTime();
+        try {
+            if (imageIndex != null) {
+                Boolean present = launcher.getChannel().call(new DockerImagePresence.Contains(imageIndex, image));
+                if (present != null) return present;
+            }
 
-        OutputStream out = verbose ? listener.getLogger() : new ByteArrayOutputStream();
-        OutputStream err = verbose ? listener.getLogger() : new ByteArrayOutputStream();
+            if (api != null) {
+                return api.hasImage(image);
+            }
 
-        int status = launcher.launch()
-                .envs(getEnvVars())
-                .cmds(args)
-                .stdout(out).stderr(err).quiet(!verbose).join();
-        return status == 0;
+            ArgumentListBuilder args = dockerCommand()
+                .add("inspect", image);
+
+            // image not being there is expected, so output isn't worth reporting
+            OutputStream out = verbose ? listener.getLogger() : new CommandOutput();
+            OutputStream err = verbose ? listener.getLogger() : new CommandOutput();
+
+            int status = launcher.launch()
+                    .envs(getEnvVars())
+                    .cmds(args)
+                    .stdout(out).stderr(err).quiet(!verbose).join();
+            return status == 0;
+        } finally {
+            recordTiming("image check", start);
+        }
     }
 
     private EnvVars getEnvVars() throws IOException, InterruptedException {
         if (envVars == null) {
-            envVars = new EnvVars(build.getEnvironment(listener)).overrideAll(dockerEnv.env());
+            envVars = new EnvVars(buildEnvironment).overrideAll(dockerEnv.env());
         }
         return envVars;
     }
 
-    public boolean pullImage(String image) throws IOException, InterruptedException {
-        ArgumentListBuilder args = dockerCommand()
-            .add("pull", image);
+    /**
+     * Pull image. Concurrent builds pulling the same image on this docker daemon share a single pull.
+     */
+    public boolean pullImage(final String image) throws IOException, InterruptedException {
+        String key = daemonKey() + "|pull|" + registryEndpoint.getCredentialsId() + "|" + image;
+        return SingleFlight.run(key, listener, "pull of Docker image " + image, new SingleFlight.Operation<Boolean>() {
+            @Override
+            public Boolean run() throws IOException, InterruptedException {
+                return doPullImage(image);
+            }
+        });
+    }
 
-        OutputStream out = verbose ? listener.getLogger() : new ByteArrayOutputStream();
-        OutputStream err = verbose ? listener.getLogger() : new ByteArrayOutputStream();
-        int status = launcher.launch()
-                .envs(getEnvVars())
-                .cmds(args)
-                .stdout(out).stderr(err).join();
-        return status == 0;
+    private boolean doPullImage(String image) throws IOException, InterruptedException {
+        DaemonAdmission.Permit permit = admit("pull");
+        long start = System.nanoTime();
+        try {
+            if (api != null) {
+                Boolean pulled = api.pullImage(image);
+                if (pulled != null) return pulled;
+            }
+
+            ArgumentListBuilder args = dockerCommand()
+                .add("pull", image);
+
+            OutputStream out = verbose ? listener.getLogger() : new CommandOutput();
+            CommandOutput err = new CommandOutput();
+            int status = launcher.launch()
+                    .envs(getEnvVars())
+                    .cmds(args)
+                    .stdout(out).stderr(verbose ? listener.getLogger() : err).join();
+            if (status != 0 && !verbose) err.dump(listener);
+            return status == 0;
+        } finally {
+            recordTiming("pull", start);
+            permit.release();
+        }
     }
 
 
-    public String buildImage(FilePath workspace, String dockerfile, boolean forcePull, boolean noCache) throws IOException, InterruptedException {
-        FilePath tempImageIdFile = workspace.createTempFile("dcbep-", ".iid");
+    /**
+     * Build image from Dockerfile. Build context is created on the node hosting <code>context</code> directory, and
+     * streamed to docker daemon with just the files it requires, excluding the ones ignored by <code>.dockerignore</code>.
+     * @param dockerfile path to Dockerfile, relative to <code>context</code>
+     */
+    public String buildImage(FilePath context, String dockerfile, boolean fullContext, boolean forcePull, boolean noCache) throws IOException, InterruptedException {
+        return buildImage(context, dockerfile, fullContext, forcePull, noCache, null);
+    }
 
-        ArgumentListBuilder args = dockerCommand()
-            .add("build")
-            .add("--iidfile", tempImageIdFile.getRemote());
+    /**
+     * @param buildKit <code>docker buildx build</code> options (cache import/export, secrets, ...), to build with
+     *                 BuildKit rather than classic builder. <code>null</code> for a classic build.
+     */
+    public String buildImage(FilePath context, String dockerfile, boolean fullContext, boolean forcePull, boolean noCache, List<String> buildKit) throws IOException, InterruptedException {
+        DaemonAdmission.Permit permit = admit("build");
+        long start = System.nanoTime();
+        try {
+            Map<String, String> labels = new LinkedHashMap<String, String>();
+            labels.put("jenkins-project", this.build.getProject().getName());
+            // project name isn't unique across folders
+            labels.put("jenkins-job", this.build.getProject().getFullName());
+            labels.put("jenkins-build-number", String.valueOf(this.build.getNumber()));
+
+            String imageId;
+            // BuildKit session (secrets, cache export) is only supported by docker CLI
+            if (api != null && buildKit == null) {
+                imageId = api.buildImage(context, dockerfile, fullContext, forcePull, noCache, labels);
+            } else {
+                ArgumentListBuilder args = dockerCommand();
+                if (buildKit != null) {
+                    args.add("buildx", "build", "--load").add(buildKit);
+                } else {
+                    args.add("build");
+                }
 
-        if (forcePull)
-            args.add("--pull");
+                if (forcePull)
+                    args.add("--pull");
 
-        if (noCache)
-            args.add("--no-cache");
+                if (noCache)
+                    args.add("--no-cache");
 
-        args.add("--file", dockerfile)
-            .add(workspace.getRemote());
+                for (Map.Entry<String, String> label : labels.entrySet()) {
+                    args.add("--label", label.getKey() + "=" + label.getValue());
+                }
+
+                imageId = context.act(new BuildContext.Build(args.toList(), getEnvVars(), dockerfile, fullContext, listener));
+            }
+            if (imageId == null) {
+                throw new RuntimeException("Failed to build docker image from project Dockerfile");
+            }
+
+            if (imageId.equals("")) {
+                throw new RuntimeException("Failed to lookup the docker build ImageID. ID cannot be empty.");
+            }
+
+            listener.getLogger().println("ID of built image: \"" + imageId + "\"");
 
-        args.add("--label", "jenkins-project=" + this.build.getProject().getName());
-        args.add("--label", "jenkins-build-number=" + this.build.getNumber());
+            return imageId;
+        } finally {
+            recordTiming("build", start);
+            permit.release();
+        }
+    }
+
+    /**
+     * @return ID of a local image, <code>null</code> if there's no such image
+     */
+    public String getImageId(String image) throws IOException, InterruptedException {
+        ArgumentListBuilder args = dockerCommand()
+            .add("inspect", "--type", "image", "--format", "{{.Id}}", image);
+
+        CommandOutput.Value out = new CommandOutput.Value();
+        int status = launcher.launch()
+                .envs(getEnvVars())
+                .cmds(args)
+                .stdout(out).stderr(new CommandOutput()).quiet(!verbose).join();
+        return status == 0 ? out.get() : null;
+    }
 
-        OutputStream out = listener.getLogger();
-        OutputStream err = listener.getLogger();
+    /**
+     * Look up an image in registry without pulling it, so a missing image isn't reported to build log nor waits for
+     * a pull slot.
+     * @return reference pinned by manifest digest, <code>reference</code> as is if registry can't be queried this way
+     *         (like docker CLI without <code>docker manifest</code>), <code>null</code> if image doesn't exist
+     */
+    public String resolveImage(String reference) throws IOException, InterruptedException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CommandOutput err = new CommandOutput();
         int status = launcher.launch()
-            .envs(getEnvVars())
-            .cmds(args)
-            .stdout(out).stderr(err).join();
+                .envs(getEnvVars())
+                .cmds(dockerCommand().add("manifest", "inspect", "--verbose", reference))
+                .stdout(out).stderr(err).quiet(true).join();
         if (status != 0) {
-            throw new RuntimeException("Failed to build docker image from project Dockerfile");
+            String error = err.getTail();
+            if (error.contains("no such manifest") || error.contains("manifest unknown")) return null;
+            LOGGER.log(Level.FINE, "Failed to inspect {0} in registry: {1}", new Object[] {reference, error.trim()});
+            return reference;
         }
+        try {
+            Object manifest = JSONSerializer.toJSON(out.toString("UTF-8"));
+            // a manifest list is reported as its per-platform manifests, none of which is the list digest
+            if (!(manifest instanceof JSONObject)) return reference;
+            JSONObject descriptor = ((JSONObject) manifest).optJSONObject("Descriptor");
+            String digest = descriptor != null ? descriptor.optString("digest", null) : null;
+            if (digest == null || !digest.startsWith("sha256:")) return reference;
+            int slash = reference.lastIndexOf('/');
+            int colon = reference.lastIndexOf(':');
+            return (colon > slash ? reference.substring(0, colon) : reference) + "@" + digest;
+        } catch (JSONException e) {
+            LOGGER.log(Level.FINE, "Unexpected manifest for " + reference, e);
+            return reference;
+        }
+    }
 
-        String imageId = tempImageIdFile.readToString();
-
-        if (imageId.equals("")) {
-            throw new RuntimeException("Failed to lookup the docker build ImageID. ID cannot be empty.");
+    /**
+     * Tag a local image as <code>reference</code> and push it to registry.
+     */
+    public boolean pushImage(String image, String reference) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        try {
+            OutputStream out = verbose ? listener.getLogger() : new CommandOutput();
+            CommandOutput err = new CommandOutput();
+
+            int status = launcher.launch()
+                    .envs(getEnvVars())
+                    .cmds(dockerCommand().add("tag", image, reference))
+                    .stdout(out).stderr(verbose ? listener.getLogger() : err).quiet(!verbose).join();
+            if (status == 0) {
+                status = launcher.launch()
+                        .envs(getEnvVars())
+                        .cmds(dockerCommand().add("push", reference))
+                        .stdout(out).stderr(verbose ? listener.getLogger() : err).quiet(!verbose).join();
+            }
+            if (status != 0 && !verbose) err.dump(listener);
+            return status == 0;
+        } finally {
+            recordTiming("push", start);
         }
+    }
 
-        listener.getLogger().println("ID of built image: \"" + imageId + "\"");
-        tempImageIdFile.delete();
+    /**
+     * Inspect images having a label, without reporting to build log.
+     * @param format <code>docker inspect</code> Go template, to get one line per image
+     */
+    public List<String> inspectImages(String label, String format) throws IOException, InterruptedException {
+        // image is listed once per tag
+        final Set<String> images = new LinkedHashSet<String>();
+        CommandOutput err = new CommandOutput();
+        int status = launcher.launch()
+                .envs(getEnvVars())
+                .cmds(dockerCommand().add("images", "--quiet", "--no-trunc", "--filter", "label=" + label))
+                .stdout(new CommandOutput(true) {
+                    @Override
+                    protected void line(String line) {
+                        if (line.trim().length() > 0) images.add(line.trim());
+                    }
+                }).stderr(err).quiet(true).join();
+        if (status != 0) throw new IOException("Failed to list docker images: " + err.getTail().trim());
+
+        final List<String> inspected = new ArrayList<String>();
+        if (images.isEmpty()) return inspected;
+
+        // non zero status if an image has been removed meanwhile, output still has the other ones
+        launcher.launch()
+                .envs(getEnvVars())
+                .cmds(dockerCommand().add("inspect", "--type", "image", "--format", format).add(images.toArray(new String[images.size()])))
+                .stdout(new CommandOutput(true) {
+                    @Override
+                    protected void line(String line) {
+                        if (line.trim().length() > 0) inspected.add(line.trim());
+                    }
+                }).stderr(new CommandOutput()).quiet(true).join();
+        return inspected;
+    }
 
-        return imageId;
+    /**
+     * Remove image, without reporting to build log. Images used by a container aren't removed.
+     * @param references image tags, or ID for an untagged image
+     */
+    public boolean removeImage(List<String> references) throws IOException, InterruptedException {
+        int status = launcher.launch()
+                .envs(getEnvVars())
+                .cmds(dockerCommand().add("rmi").add(references))
+                .stdout(new CommandOutput()).stderr(new CommandOutput()).quiet(true).join();
+        return status == 0;
     }
 
+    /**
+     * Sample container resource usage, without reporting to build log.
+     * @param format <code>docker stats</code> Go template
+     * @param timeout seconds to wait for an unresponsive daemon
+     * @return stats, <code>null</code> if container isn't running
+     */
+    public String stats(String container, String format, int timeout) throws IOException, InterruptedException {
+        CommandOutput.Value out = new CommandOutput.Value();
+        int status = launcher.launch()
+                .envs(getEnvVars())
+                .cmds(dockerCommand().add("stats", "--no-stream", "--format", format, container))
+                .stdout(out).stderr(new CommandOutput()).quiet(true)
+                .start().joinWithTimeout(timeout, TimeUnit.SECONDS, listener);
+        return status == 0 ? out.get() : null;
+    }
+
+    /**
+     * Query daemon for its load, without reporting to build log.
+     * @param format <code>docker info</code> Go template
+     * @param timeout seconds to wait for an unresponsive daemon
+     * @return info, <code>null</code> if daemon can't be reached
+     */
+    public String info(String format, int timeout) throws IOException, InterruptedException {
+        CommandOutput.Value out = new CommandOutput.Value();
+        int status = launcher.launch()
+                .envs(getEnvVars())
+                .cmds(dockerCommand().add("info", "--format", format))
+                .stdout(out).stderr(new CommandOutput()).quiet(true)
+                .start().joinWithTimeout(timeout, TimeUnit.SECONDS, listener);
+        return status == 0 ? out.get() : null;
+    }
+
+    DockerServerEndpoint getDockerHost() {
+        return dockerHost;
+    }
+
+    /**
+     * Stop build container processes, so they don't outlive the build. Container is then removed in background by
+     * {@link ContainerReaper}, as this can take a while.
+     */
     public void kill(String container) throws IOException, InterruptedException {
+        listener.getLogger().println("Stopping Docker container after build completion");
+        if (api != null) {
+            if (!api.kill(container)) {
+                listener.getLogger().println("Failed to stop docker container "+container);
+            }
+            return;
+        }
+
         ArgumentListBuilder args = dockerCommand()
             .add("kill", container);
 
+        OutputStream out = verbose ? listener.getLogger() : new CommandOutput();
+        CommandOutput err = new CommandOutput();
+        int status = launcher.launch()
+                .envs(getEnvVars())
+                .cmds(args)
+                .stdout(out).stderr(verbose ? listener.getLogger() : err).quiet(!verbose).join();
+        if (status != 0) {
+            if (!verbose) err.dump(listener);
+            listener.getLogger().println("Failed to stop docker container "+container);
+        }
+    }
 
-        listener.getLogger().println("Stopping Docker container after build completion");
-        OutputStream out = verbose ? listener.getLogger() : new ByteArrayOutputStream();
-        OutputStream err = verbose ? listener.getLogger() : new ByteArrayOutputStream();
+    /**
+     * Check a container is still running.
+     */
+    public boolean isRunning(String container) throws IOException, InterruptedException {
+        if (api != null) {
+            return api.isRunning(container);
+        }
+
+        ArgumentListBuilder args = dockerCommand()
+            .add("inspect", "--format", "{{.State.Running}}", container);
+
+        CommandOutput.Value out = new CommandOutput.Value();
         int status = launcher.launch()
                 .envs(getEnvVars())
                 .cmds(args)
-                .stdout(out).stderr(err).quiet(!verbose).join();
-        if (status != 0)
-            throw new RuntimeException("Failed to stop docker container "+container);
-        args = new ArgumentListBuilder()
-            .add(dockerExecutable)
+                .stdout(out).stderr(new CommandOutput()).quiet(!verbose).join();
+        return status == 0 && "true".equals(out.get());
+    }
+
+    /**
+     * Forcibly remove a container, without reporting to build log. Used for containers which don't host a build.
+     */
+    public boolean remove(String container) throws IOException, InterruptedException {
+        if (api != null) {
+            return api.remove(container);
+        }
+
+        ArgumentListBuilder args = dockerCommand()
             .add("rm", "--force", container);
-        status = launcher.launch()
+
+        int status = launcher.launch()
                 .envs(getEnvVars())
                 .cmds(args)
-                .stdout(out).stderr(err).quiet(!verbose).join();
-        if (status != 0)
-            listener.getLogger().println("Failed to remove docker container "+container);
+                .stdout(new CommandOutput()).stderr(new CommandOutput()).quiet(true).join();
+        return status == 0;
     }
 
-    public String runDetached(String image, String workdir, Map<String, String> volumes, Map<Integer, Integer> ports, Map<String, String> links, EnvVars environment, Set sensitiveBuildVariables, String net, String memory, String cpu, String... command) throws IOException, InterruptedException {
+    /**
+     * List containers, running or not, having a label, without reporting to build log.
+     * @param filter label filter, <code>name</code> or <code>name=value</code>
+     * @param label label to report for each container
+     * @return value of <code>label</code> for each container ID
+     */
+    public Map<String, String> listContainers(String filter, String label) throws IOException, InterruptedException {
+        final Map<String, String> containers = new LinkedHashMap<String, String>();
+        CommandOutput err = new CommandOutput();
+        int status = launcher.launch()
+                .envs(getEnvVars())
+                .cmds(dockerCommand().add("ps", "--all", "--no-trunc", "--filter", "label=" + filter,
+                        "--format", "{{.ID}}|{{.Label \"" + label + "\"}}"))
+                .stdout(new CommandOutput(true) {
+                    @Override
+                    protected void line(String line) {
+                        int i = line.indexOf('|');
+                        if (i > 0) containers.put(line.substring(0, i), line.substring(i + 1).trim());
+                    }
+                }).stderr(err).quiet(true).join();
+        if (status != 0) throw new IOException("Failed to list docker containers: " + err.getTail().trim());
+        return containers;
+    }
 
-        String docker0 = getDocker0Ip(launcher, image);
+    /**
+     * Forcibly remove a batch of containers.
+     * @return containers which failed to be removed
+     */
+    public List<String> removeAll(List<String> containers) throws IOException, InterruptedException {
+        List<String> failed = new ArrayList<String>();
+        if (api == null) {
+            ArgumentListBuilder args = dockerCommand()
+                .add("rm", "--force");
+            for (String container : containers) {
+                args.add(container);
+            }
+            int status = launcher.launch()
+                    .envs(getEnvVars())
+                    .cmds(args)
+                    .stdout(new CommandOutput()).stderr(new CommandOutput()).quiet(true).join();
+            if (status == 0) return failed;
+        }
+        // check which ones failed
+        for (String container : containers) {
+            if (!remove(container)) failed.add(container);
+        }
+        return failed;
+    }
 
+    /**
+     * @param name container name, <code>null</code> to let docker generate one
+     */
+    public String runDetached(String name, String image, String workdir, Map<String, String> volumes, Map<Integer, Integer> ports, Map<String, String> links, EnvVars environment, Set sensitiveBuildVariables, String net, String memory, String cpu, String user, String... command) throws IOException, InterruptedException {
+        DaemonAdmission.Permit permit = admit("start");
+        long start = System.nanoTime();
+        boolean started = false;
+        try {
+
+            String docker0 = getDockerhost(image);
+
+            if (api != null) {
+                Map<String, String> env = new HashMap<String, String>(environment);
+                env.remove("HOSTNAME");
+                List<String> extraHosts = new ArrayList<String>();
+                if (!"host".equals(net)) {
+                    extraHosts.add("dockerhost:"+docker0);
+                }
+                String container = api.runDetached(name, image, workdir,
+                        volumes, ports, links, env, privileged, net, memory, cpu, user, extraHosts, containerLabels, command);
+                started = true;
+                return container;
+            }
 
-        ArgumentListBuilder args = dockerCommand()
-            .add("run", "--tty", "--detach");
-        args.add("--name", this.build.getProject().getName() + "-" + this.build.getNumber());
+            ArgumentListBuilder args = addRunArgs(dockerCommand(), name, image, workdir, volumes, ports, links,
+                    environment, sensitiveBuildVariables, net, memory, cpu, user, privileged, containerLabels, docker0, command);
+
+            // docker run prints container ID, once image has been pulled if missing
+            CommandOutput.Value out = new CommandOutput.Value();
+            CommandOutput err = new CommandOutput();
+
+            int status = launcher.launch()
+                    .envs(getEnvVars())
+                    .cmds(args)
+                    .stdout(out).quiet(!verbose).stderr(verbose ? listener.getLogger() : err).join();
+
+            if (status != 0) {
+                err.dump(listener);
+                throw new RuntimeException("Failed to run docker image");
+            }
+            started = true;
+            return out.get();
+        } finally {
+            if (!started) {
+                // daemon might have been restarted with another bridge network, which we can't detect for a
+                // remote daemon, so discover dockerhost again for next build
+                DockerBridgeCache.invalidate(daemonKey());
+                dockerhost = null;
+            }
+            recordTiming("run", start);
+            permit.release();
+        }
+    }
+
+    /**
+     * Add <code>docker run</code> arguments to start build container.
+     */
+    static ArgumentListBuilder addRunArgs(ArgumentListBuilder args, String name, String image, String workdir, Map<String, String> volumes, Map<Integer, Integer> ports, Map<String, String> links, EnvVars environment, Set sensitiveBuildVariables, String net, String memory, String cpu, String user, boolean privileged, Map<String, String> labels, String docker0, String... command) {
+        args.add("run", "--tty", "--detach");
+        if (name != null) {
+            args.add("--name", name);
+        }
 
         if (privileged) {
             args.add( "--privileged");
         }
+        if (user != null) {
+            args.add("--user", user);
+        }
         args.add("--workdir", workdir);
         for (Map.Entry<String, String> volume : volumes.entrySet()) {
             args.add("--volume", volume.getKey() + ":" + volume.getValue() + ":rw" );
@@ -207,6 +758,10 @@ public class Docker implements Closeable {
             args.add("--cpu-shares", cpu);
         }
 
+        for (Map.Entry<String, String> label : labels.entrySet()) {
+            args.add("--label", label.getKey() + "=" + label.getValue());
+        }
+
         if (!"host".equals(net)){
             //--add-host and --net=host are incompatible
             args.add("--add-host", "dockerhost:"+docker0);
@@ -223,22 +778,112 @@ public class Docker implements Closeable {
                 args.add(e.getKey()+"="+e.getValue());
         }
         args.add(image).add(command);
+        return args;
+    }
 
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
+    /**
+     * IP address a container can use to reach docker host, exposed to build container as <code>dockerhost</code>.
+     */
+    public String getDockerhost(String image) throws IOException, InterruptedException {
+        if (dockerhost == null) {
+            long start = System.nanoTime();
+            dockerhost = getDocker0Ip(launcher, image);
+            recordTiming("dockerhost", start);
+        }
+        return dockerhost;
+    }
+
+    /**
+     * Record time spent in a build environment phase, on build's {@link BuiltInContainer} action and as metrics.
+     * @param start phase start time, as {@link System#nanoTime()}
+     */
+    void recordTiming(String phase, long start) {
+        recordMillis(phase, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    private void recordMillis(String phase, long millis) {
+        // background operation, not to be accounted to the build
+        if (parent != null) return;
+        BuiltInContainer action = build.getAction(BuiltInContainer.class);
+        if (action != null) {
+            action.recordTiming(phase, millis);
+        }
+        DockerBuildMetrics.record(phase, build.getProject().getFullName(), build.getBuiltOnStr(), millis);
+    }
+
+    /**
+     * Wait for daemon to accept one more operation of this kind, as configured globally.
+     */
+    private DaemonAdmission.Permit admit(String operation) throws InterruptedException {
+        Jenkins jenkins = Jenkins.getInstance();
+        DockerBuildWrapper.DescriptorImpl descriptor = jenkins != null ? jenkins.getDescriptorByType(DockerBuildWrapper.DescriptorImpl.class) : null;
+        int limit = descriptor != null ? descriptor.getConcurrencyLimit(operation) : 0;
+        DaemonAdmission.Permit permit = DaemonAdmission.acquire(daemonKey(), operation, limit, listener);
+        if (permit.waited > 0) {
+            recordMillis("queued " + operation, permit.waited);
+        }
+        return permit;
+    }
+
+    private String getDocker0Ip(Launcher launcher, String image) throws IOException, InterruptedException {
 
+        String uri = dockerHost.getUri();
+        boolean local = uri == null || uri.startsWith("unix://");
+        String socket = local ? (uri != null ? uri.substring("unix://".length()) : "/var/run/docker.sock") : null;
+        String[] bridge = launcher.getChannel().call(new DockerBridgeCache.LocalBridge(socket));
+
+        // docker0 bridge is already setup on this node
+        if (local && bridge[0] != null) {
+            return bridge[0];
+        }
+
+        long fingerprint = Long.parseLong(bridge[1]);
+        String dockerhost = DockerBridgeCache.get(daemonKey(), fingerprint);
+        if (dockerhost != null) {
+            return dockerhost;
+        }
+
+        // Docker daemon might be configured with a custom bridge, or maybe we are just running from Windows/OSX
+        // with boot2docker ... ask daemon for the bridge network gateway
+        dockerhost = getBridgeGateway();
+        if (dockerhost == null) {
+            dockerhost = getGatewayFromContainer(launcher, image);
+        }
+
+        DockerBridgeCache.put(daemonKey(), fingerprint, dockerhost);
+        return dockerhost;
+    }
+
+    private String getBridgeGateway() throws IOException, InterruptedException {
+        if (api != null) {
+            return api.getBridgeGateway();
+        }
+
+        ArgumentListBuilder args = dockerCommand()
+                .add("network", "inspect")
+                .add("--format", "{{range .IPAM.Config}}{{.Gateway}} {{end}}")
+                .add("bridge");
+
+        CommandOutput.Value out = new CommandOutput.Value();
+        // failure is expected with older daemons, which we then handle by running a container
+        CommandOutput err = new CommandOutput();
         int status = launcher.launch()
                 .envs(getEnvVars())
                 .cmds(args)
-                .stdout(out).quiet(!verbose).stderr(listener.getLogger()).join();
+                .stdout(out).quiet(!verbose).stderr(verbose ? listener.getLogger() : err).join();
 
-        if (status != 0) {
-            throw new RuntimeException("Failed to run docker image");
+        if (status != 0 || out.get() == null) {
+            return null;
         }
-        String container = out.toString("UTF-8").trim();
-        return container;
+        for (String gateway : out.get().split(" ")) {
+            if (gateway.matches("\\d+\\.\\d+\\.\\d+\\.\\d+")) {
+                return gateway;
+            }
+        }
+        return null;
     }
 
-    private String getDocker0Ip(Launcher launcher, String image) throws IOException, InterruptedException {
+    private String getGatewayFromContainer(Launcher launcher, String image) throws IOException, InterruptedException {
 
         // On some distributions, docker doesn't start docker0 bridge until a container do require it
         // So let's run the container once, running /bin/true so it terminates immediately
@@ -258,21 +903,7 @@ public class Docker implements Closeable {
             throw new RuntimeException("Failed to run docker image "+image);
         }
 
-        // docker0 should be setup now, let's retrieve it
-
-        NetworkInterface docker0 = NetworkInterface.getByName("docker0");
-        if (docker0 != null) {
-            for (InterfaceAddress address : docker0.getInterfaceAddresses()) {
-                InetAddress inetAddress = address.getAddress();
-                if (inetAddress != null && inetAddress instanceof Inet4Address) {
-                    return inetAddress.getHostAddress();
-                }
-            }
-        }
-
-        // Docker daemon might be configured with a custom bridge, or maybe we are just running from Windows/OSX
-        // with boot2docker ...
-        // alternatively, let's run the specified image once to discover gateway IP from the container
+        // let's run alpine once to discover gateway IP from the container
         // NOTE: alpine:3.6 has a size of 2MB and contains the `/sbin/ip` binary
         args = dockerCommand()
                 .add("run", "--tty", "--rm")
@@ -281,73 +912,109 @@ public class Docker implements Closeable {
                 .add("alpine:3.6")
                 .add("route");
 
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final String[] dockerhost = new String[1];
+        CommandOutput out = new CommandOutput(true) {
+            @Override
+            protected void line(String line) {
+                // equivalent to `awk '/default/ { print $3 }'` but we can't assume awk is available
+                int i = line.indexOf("default");
+                if (dockerhost[0] == null && i >= 0) dockerhost[0] = line.substring(i).split(" ")[2];
+            }
+        };
 
         status = launcher.launch()
                 .envs(getEnvVars())
                 .cmds(args)
                 .stdout(out).quiet(!verbose).stderr(listener.getLogger()).join();
+        out.close();
 
-        if (status != 0) {
+        if (status != 0 || dockerhost[0] == null) {
             throw new RuntimeException("Failed to retrieve Docker daemon bridge IP");
         }
+        return dockerhost[0];
+    }
 
-        String route = out.toString("UTF-8").trim();
-
-        // equivalent to `awk '/default/ { print $3 }'` but we can't assume awk is available
-        String dockerhost = route.substring(route.indexOf("default")) .split(" ")[2];
-        return dockerhost;
+    /**
+     * Key to identify the Docker daemon used by this build, for caches shared by builds running on same node.
+     */
+    String daemonKey() {
+        return build.getBuiltOnStr() + "|" + (dockerHost.getUri() != null ? dockerHost.getUri() : "");
     }
 
 
     public EnvVars getEnv(String container, Launcher launcher) throws IOException, InterruptedException {
-        final ArgumentListBuilder args = dockerCommand()
-                .add("exec")
-                .add("--tty")
-                .add(container)
-                .add("env");
-
-        final ByteArrayOutputStream out = new ByteArrayOutputStream();
-        int status = launcher.launch()
-                .envs(getEnvVars())
-                .cmds(args)
-                .stdout(out).quiet(!verbose).stderr(listener.getLogger()).join();
-
-        if (status != 0) {
-            throw new RuntimeException("Failed to retrieve container's environment");
-        }
+        long start = System.nanoTime();
+        try {
+            if (api != null) {
+                return api.getEnv(container);
+            }
 
-        EnvVars env = new EnvVars();
-        LineIterator it = new LineIterator(new StringReader(out.toString()));
-        while (it.hasNext()) {
-            env.addLine(it.nextLine());
+            final ArgumentListBuilder args = dockerCommand()
+                    .add("exec")
+                    .add("--tty")
+                    .add(container)
+                    .add("env");
+
+            final EnvVars env = new EnvVars();
+            CommandOutput out = new CommandOutput(true) {
+                @Override
+                protected void line(String line) {
+                    env.addLine(line);
+                }
+            };
+            CommandOutput err = new CommandOutput();
+            int status = launcher.launch()
+                    .envs(getEnvVars())
+                    .cmds(args)
+                    .stdout(out).quiet(!verbose).stderr(verbose ? listener.getLogger() : err).join();
+            out.close();
+
+            if (status != 0) {
+                err.dump(listener);
+                throw new RuntimeException("Failed to retrieve container's environment");
+            }
+            return env;
+        } finally {
+            recordTiming("environment", start);
         }
-        return env;
     }
 
 
     public void executeIn(String container, String userId, Launcher.ProcStarter starter, EnvVars environment) throws IOException, InterruptedException {
         List<String> prefix = dockerCommandArgs();
-        prefix.add("exec");
-        prefix.add("--tty");
-        prefix.add("--user");
-        prefix.add(userId);
-        prefix.add(container);
-        prefix.add("env");
+        addExecArgs(prefix, container, userId, environment);
+        prepend(starter, prefix);
+
+        starter.envs(getEnvVars());
+    }
+
+    /**
+     * Add <code>docker exec</code> arguments to run a command in build container.
+     */
+    static void addExecArgs(List<String> args, String container, String userId, EnvVars environment) {
+        args.add("exec");
+        args.add("--tty");
+        args.add("--user");
+        args.add(userId);
+        args.add(container);
+        args.add("env");
 
         // Build a list of environment, hidding node's one
         for (Map.Entry<String, String> e : environment.entrySet()) {
-            prefix.add(e.getKey()+"="+e.getValue());
+            args.add(e.getKey()+"="+e.getValue());
         }
+    }
 
+    /**
+     * Prepend arguments to the command line, keeping masks aligned with the original arguments.
+     */
+    static void prepend(Launcher.ProcStarter starter, List<String> prefix) {
         starter.cmds().addAll(0, prefix);
         if (starter.masks() != null) {
             boolean[] masks = new boolean[starter.masks().length + prefix.size()];
             System.arraycopy(starter.masks(), 0, masks, prefix.size(), starter.masks().length);
             starter.masks(masks);
         }
-
-        starter.envs(getEnvVars());
     }
 
     private ArgumentListBuilder dockerCommand() {
@@ -367,4 +1034,6 @@ public class Docker implements Closeable {
         }
         return args;
     }
+
+    private static final Logger LOGGER = Logger.getLogger(Docker.class.getName());
 }
@@ -0,0 +1,85 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import jenkins.security.MasterToSlaveCallable;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache for the IP address build containers use to reach docker host (exposed as <code>dockerhost</code>), per node
+ * and Docker daemon, so we don't have to discover it again for every build.
+ * <p>
+ * Entries expire after a TTL. For a local daemon they are invalidated when daemon restarts, which we detect by the
+ * daemon socket being re-created. A remote daemon restart can't be detected this way, so entries are also invalidated
+ * when a container fails to start.
+ */
+class DockerBridgeCache {
+
+    private static final long TTL = Long.getLong(DockerBridgeCache.class.getName()+".ttl", TimeUnit.HOURS.toMillis(1));
+
+    private static final ConcurrentMap<String, Entry> CACHE = new ConcurrentHashMap<String, Entry>();
+
+    static String get(String daemon, long fingerprint) {
+        Entry entry = CACHE.get(daemon);
+        if (entry == null) return null;
+        if (entry.fingerprint != fingerprint || System.currentTimeMillis() - entry.timestamp > TTL) {
+            CACHE.remove(daemon, entry);
+            return null;
+        }
+        return entry.ip;
+    }
+
+    static void put(String daemon, long fingerprint, String ip) {
+        CACHE.put(daemon, new Entry(ip, fingerprint, System.currentTimeMillis()));
+    }
+
+    static void invalidate(String daemon) {
+        CACHE.remove(daemon);
+    }
+
+    private static final class Entry {
+        private final String ip;
+        private final long fingerprint;
+        private final long timestamp;
+
+        Entry(String ip, long fingerprint, long timestamp) {
+            this.ip = ip;
+            this.fingerprint = fingerprint;
+            this.timestamp = timestamp;
+        }
+    }
+
+    /**
+     * Inspect node network setup. Returns <code>docker0</code> bridge IPv4 address if available on node, and a
+     * fingerprint for daemon (socket modification time) so we can detect it has been restarted.
+     */
+    static final class LocalBridge extends MasterToSlaveCallable<String[], IOException> {
+        private final String socket;
+
+        LocalBridge(String socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public String[] call() throws IOException {
+            String fingerprint = String.valueOf(socket != null ? new File(socket).lastModified() : 0L);
+            NetworkInterface docker0 = NetworkInterface.getByName("docker0");
+            if (docker0 != null) {
+                for (InterfaceAddress address : docker0.getInterfaceAddresses()) {
+                    InetAddress inetAddress = address.getAddress();
+                    if (inetAddress instanceof Inet4Address) {
+                        return new String[] { inetAddress.getHostAddress(), fingerprint };
+                    }
+                }
+            }
+            return new String[] { null, fingerprint };
+        }
+    }
+}
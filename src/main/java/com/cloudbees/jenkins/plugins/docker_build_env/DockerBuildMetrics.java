@@ -0,0 +1,176 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import hudson.Extension;
+import hudson.model.RootAction;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.StaplerResponse;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Time spent in docker build environment phases (credentials setup, image pull, container start, ...) aggregated by
+ * job and node, so we can tell where build startup latency goes. Metrics are exposed over JMX and in Prometheus text
+ * format from <code>${rootURL}/docker-build-environment-metrics/</code>.
+ */
+class DockerBuildMetrics {
+
+    private static final ConcurrentMap<Key, Stat> STATS = new ConcurrentHashMap<Key, Stat>();
+
+    static void record(String phase, String job, String node, long millis) {
+        Key key = new Key(phase, job, node.length() > 0 ? node : "master");
+        Stat stat = STATS.get(key);
+        if (stat == null) {
+            STATS.putIfAbsent(key, new Stat());
+            stat = STATS.get(key);
+        }
+        stat.add(millis);
+    }
+
+    private static final class Key {
+        private final String phase;
+        private final String job;
+        private final String node;
+
+        Key(String phase, String job, String node) {
+            this.phase = phase;
+            this.job = job;
+            this.node = node;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return phase.equals(key.phase) && job.equals(key.job) && node.equals(key.node);
+        }
+
+        @Override
+        public int hashCode() {
+            return (phase.hashCode() * 31 + job.hashCode()) * 31 + node.hashCode();
+        }
+    }
+
+    private static final class Stat {
+        private long count;
+        private long totalMillis;
+
+        synchronized void add(long millis) {
+            count++;
+            totalMillis += millis;
+        }
+
+        synchronized long[] snapshot() {
+            return new long[] {count, totalMillis};
+        }
+    }
+
+    /**
+     * @param byJob aggregate by job, otherwise by node
+     * @param index 0 for count, 1 for total time in milliseconds
+     */
+    private static Map<String, Long> aggregate(boolean byJob, int index) {
+        Map<String, Long> aggregated = new TreeMap<String, Long>();
+        for (Map.Entry<Key, Stat> entry : STATS.entrySet()) {
+            Key key = entry.getKey();
+            String name = (byJob ? key.job : key.node) + "|" + key.phase;
+            Long previous = aggregated.get(name);
+            long value = entry.getValue().snapshot()[index];
+            aggregated.put(name, previous != null ? previous + value : value);
+        }
+        return aggregated;
+    }
+
+    /**
+     * JMX view on metrics. Keys are <code>job|phase</code> or <code>node|phase</code>.
+     */
+    public interface PhaseTimingsMXBean {
+        Map<String, Long> getCountByJob();
+        Map<String, Long> getTotalMillisByJob();
+        Map<String, Long> getCountByNode();
+        Map<String, Long> getTotalMillisByNode();
+    }
+
+    private static final class PhaseTimings implements PhaseTimingsMXBean {
+        public Map<String, Long> getCountByJob() {
+            return aggregate(true, 0);
+        }
+
+        public Map<String, Long> getTotalMillisByJob() {
+            return aggregate(true, 1);
+        }
+
+        public Map<String, Long> getCountByNode() {
+            return aggregate(false, 0);
+        }
+
+        public Map<String, Long> getTotalMillisByNode() {
+            return aggregate(false, 1);
+        }
+    }
+
+    private static void registerMBean() {
+        try {
+            ObjectName name = new ObjectName("com.cloudbees.jenkins.plugins.docker_build_env:type=PhaseTimings");
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new PhaseTimings(), name);
+            }
+        } catch (JMException e) {
+            LOGGER.log(Level.WARNING, "Failed to register docker build environment metrics MBean", e);
+        }
+    }
+
+    /**
+     * Expose metrics in Prometheus text format.
+     */
+    @Extension
+    public static class Endpoint implements RootAction {
+
+        public String getIconFileName() {
+            return null;
+        }
+
+        public String getDisplayName() {
+            return "Docker build environment metrics";
+        }
+
+        public String getUrlName() {
+            return "docker-build-environment-metrics";
+        }
+
+        public void doIndex(StaplerResponse rsp) throws IOException {
+            Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+            rsp.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+            PrintWriter w = rsp.getWriter();
+            w.println("# HELP docker_build_environment_phase_seconds Time spent in docker build environment phases");
+            w.println("# TYPE docker_build_environment_phase_seconds summary");
+            for (Map.Entry<Key, Stat> entry : STATS.entrySet()) {
+                Key key = entry.getKey();
+                long[] stat = entry.getValue().snapshot();
+                String labels = "{job=\"" + escape(key.job) + "\",node=\"" + escape(key.node) + "\",phase=\"" + escape(key.phase) + "\"}";
+                w.println("docker_build_environment_phase_seconds_count" + labels + " " + stat[0]);
+                w.println("docker_build_environment_phase_seconds_sum" + labels + " " + (stat[1] / 1000.0));
+            }
+            w.flush();
+        }
+
+        private static String escape(String label) {
+            return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(DockerBuildMetrics.class.getName());
+
+    static {
+        registerMBean();
+    }
+}
@@ -4,38 +4,52 @@ import com.cloudbees.plugins.credentials.CredentialsProvider;
 import com.cloudbees.plugins.credentials.common.StandardCredentials;
 import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
 import com.cloudbees.plugins.credentials.domains.DomainRequirement;
+import com.sun.security.auth.module.UnixSystem;
 import hudson.EnvVars;
 import hudson.Extension;
+import hudson.FilePath;
 import hudson.Launcher;
 import hudson.model.AbstractBuild;
+import hudson.model.Action;
 import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
 import hudson.model.Computer;
 import hudson.model.Descriptor;
 import hudson.model.Item;
+import hudson.model.Result;
 import hudson.model.Run;
 import hudson.model.TaskListener;
 import hudson.remoting.Callable;
+import hudson.remoting.VirtualChannel;
 import hudson.tasks.BuildWrapper;
 import hudson.tasks.BuildWrapperDescriptor;
 import hudson.util.ListBoxModel;
 import jenkins.authentication.tokens.api.AuthenticationTokens;
 import jenkins.model.Jenkins;
 import jenkins.security.MasterToSlaveCallable;
+import net.sf.json.JSONObject;
+import org.apache.commons.io.IOUtils;
 import org.jenkinsci.plugins.docker.commons.credentials.DockerRegistryToken;
 import org.jenkinsci.plugins.docker.commons.credentials.DockerServerEndpoint;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -75,6 +89,22 @@ public class DockerBuildWrapper extends BuildWrapper {
 
     private final boolean noCache;
 
+    private boolean useEngineApi;
+
+    private boolean containerAgent;
+
+    private int containerPoolSize;
+
+    private int containerPoolIdleTimeout = 10;
+
+    private List<CacheVolume> caches = Collections.emptyList();
+
+    /** container resource usage sampling interval (seconds), 0 to disable */
+    private int statsInterval;
+
+    /** more docker hosts to balance builds across, along with {@link #dockerHost} */
+    private List<DockerServerEndpoint> dockerHosts = Collections.emptyList();
+
     @DataBoundConstructor
     public DockerBuildWrapper(DockerImageSelector selector, String dockerInstallation, DockerServerEndpoint dockerHost, String dockerRegistryCredentials, boolean verbose, boolean privileged,
                               List<Volume> volumes, String group, String command,
@@ -146,17 +176,113 @@ public class DockerBuildWrapper extends BuildWrapper {
         return noCache;
     }
 
+    public boolean isUseEngineApi() {
+        return useEngineApi;
+    }
+
+    @DataBoundSetter
+    public void setUseEngineApi(boolean useEngineApi) {
+        this.useEngineApi = useEngineApi;
+    }
+
+    public boolean isContainerAgent() {
+        return containerAgent;
+    }
+
+    @DataBoundSetter
+    public void setContainerAgent(boolean containerAgent) {
+        this.containerAgent = containerAgent;
+    }
+
+    public int getContainerPoolSize() {
+        return containerPoolSize;
+    }
+
+    @DataBoundSetter
+    public void setContainerPoolSize(int containerPoolSize) {
+        this.containerPoolSize = containerPoolSize;
+    }
+
+    public int getContainerPoolIdleTimeout() {
+        return containerPoolIdleTimeout;
+    }
+
+    @DataBoundSetter
+    public void setContainerPoolIdleTimeout(int containerPoolIdleTimeout) {
+        this.containerPoolIdleTimeout = containerPoolIdleTimeout;
+    }
+
+    public List<CacheVolume> getCaches() {
+        return caches;
+    }
+
+    @DataBoundSetter
+    public void setCaches(List<CacheVolume> caches) {
+        this.caches = caches != null ? caches : Collections.<CacheVolume>emptyList();
+    }
+
+    public int getStatsInterval() {
+        return statsInterval;
+    }
+
+    @DataBoundSetter
+    public void setStatsInterval(int statsInterval) {
+        this.statsInterval = statsInterval;
+    }
+
+    public List<DockerServerEndpoint> getDockerHosts() {
+        return dockerHosts;
+    }
+
+    @DataBoundSetter
+    public void setDockerHosts(List<DockerServerEndpoint> dockerHosts) {
+        this.dockerHosts = dockerHosts != null ? dockerHosts : Collections.<DockerServerEndpoint>emptyList();
+    }
+
+    @Override
+    public Collection<? extends Action> getProjectActions(AbstractProject job) {
+        return statsInterval > 0 ? Collections.singleton(new ContainerStatsTrend(job)) : Collections.<Action>emptyList();
+    }
+
     @Override
     public Launcher decorateLauncher(final AbstractBuild build, final Launcher launcher, final BuildListener listener) throws IOException, InterruptedException, Run.RunnerAbortedException {
-        final Docker docker = new Docker(dockerHost, dockerInstallation, dockerRegistryCredentials, build, launcher, listener, verbose, privileged);
+        final Docker docker = selectDocker(build, launcher, listener);
 
         final BuiltInContainer runInContainer = new BuiltInContainer(docker);
+        // added first, so docker client gets released on build completion even if following steps fail
         build.addAction(runInContainer);
+        runInContainer.userId = whoAmI(launcher);
+        runInContainer.preparation = prepareBeforeCheckout(docker, build, listener);
 
-        DockerDecoratedLauncher decorated = new DockerDecoratedLauncher(selector, launcher, runInContainer, build, whoAmI(launcher));
+        DockerDecoratedLauncher decorated = new DockerDecoratedLauncher(selector, launcher, runInContainer, build, runInContainer.userId);
         return decorated;
     }
 
+    /**
+     * Docker client for the host to run this build on. Job can define a pool of docker hosts, otherwise the global
+     * pool is used unless job has an explicit docker host.
+     */
+    private Docker selectDocker(AbstractBuild build, Launcher launcher, BuildListener listener) throws IOException, InterruptedException {
+        List<DockerServerEndpoint> hosts = new ArrayList<DockerServerEndpoint>();
+        if (!dockerHosts.isEmpty()) {
+            hosts.add(dockerHost);
+            hosts.addAll(dockerHosts);
+        } else if (dockerHost.getUri() == null) {
+            hosts.addAll(((DescriptorImpl) getDescriptor()).getDockerHosts());
+        }
+        if (hosts.size() <= 1) {
+            DockerServerEndpoint host = hosts.isEmpty() ? dockerHost : hosts.get(0);
+            return new Docker(host, dockerInstallation, dockerRegistryCredentials, selector.getRegistryUrl(), build, launcher, listener, verbose, privileged, useEngineApi);
+        }
+
+        List<Docker> candidates = new ArrayList<Docker>();
+        for (DockerServerEndpoint host : hosts) {
+            candidates.add(new Docker(host, dockerInstallation, dockerRegistryCredentials, selector.getRegistryUrl(), build, launcher, listener, verbose, privileged, useEngineApi));
+        }
+        return DockerHostBalancer.select(candidates, selector.getDockerImagesUsedByJob(build.getProject()),
+                DockerHostBalancer.reservation(memory), build, listener);
+    }
+
     @Override
     public Environment setUp(AbstractBuild build, final Launcher launcher, BuildListener listener) throws IOException, InterruptedException {
 
@@ -172,15 +298,23 @@ public class DockerBuildWrapper extends BuildWrapper {
         String tmp = build.getWorkspace().act(GetTmpdir);
         runInContainer.bindMount(tmp);
 
+        if (containerAgent && runInContainer.agent == null) {
+            runInContainer.agent = ContainerAgent.install(new FilePath(launcher.getChannel(), tmp));
+        }
+
         // mount ToolIntallers installation directory so installed tools are available inside container
 
         for (Volume volume : volumes) {
             runInContainer.bindMount(volume.getHostPath(), volume.getPath());
         }
 
+        String prepared = awaitPreparation(runInContainer, listener);
         runInContainer.getDocker().setupCredentials(build);
 
         if (runInContainer.container == null) {
+            if (runInContainer.image == null && prepared != null) {
+                runInContainer.image = prepared;
+            }
             if (runInContainer.image == null) {
                 try {
                     runInContainer.image = selector.prepareDockerImage(runInContainer.getDocker(), build, listener, forcePull, noCache);
@@ -189,8 +323,36 @@ public class DockerBuildWrapper extends BuildWrapper {
                 }
             }
 
-            runInContainer.container = startBuildContainer(runInContainer, build, listener);
-            listener.getLogger().println("Docker container " + runInContainer.container + " started to host the build");
+            FilePath nodeRoot = new FilePath(launcher.getChannel(), root);
+            ImageCollector.acquire(runInContainer.getDocker(), runInContainer.image);
+            boolean started = false;
+            try {
+                for (CacheVolume cache : caches) {
+                    CacheVolumes.Lease lease = CacheVolumes.acquire(nodeRoot, cache, build.getProject(), listener);
+                    runInContainer.caches.add(lease);
+                    runInContainer.bindMount(lease.directory, cache.getPath());
+                }
+
+                runInContainer.container = startBuildContainer(runInContainer, build, listener);
+                listener.getLogger().println("Docker container " + runInContainer.container + " started to host the build");
+                started = true;
+            } finally {
+                if (!started) {
+                    // tearDown won't run, so don't keep other builds waiting for our caches
+                    runInContainer.releaseCaches(false);
+                    ImageCollector.release(runInContainer.getDocker(), runInContainer.image);
+                }
+            }
+
+            if (runInContainer.agent != null) {
+                runInContainer.agent.awaitReady(AGENT_TIMEOUT);
+            }
+
+            // only sample once build container is ready, so a failed setup doesn't leave a sampler running
+            if (statsInterval > 0) {
+                runInContainer.stats = new ContainerStats(System.currentTimeMillis());
+                runInContainer.statsSampler = ContainerStats.sample(runInContainer.getDocker(), runInContainer.container, runInContainer.stats, statsInterval);
+            }
         }
 
         // We are all set, DockerDecoratedLauncher now can wrap launcher commands with docker-exec
@@ -199,7 +361,8 @@ public class DockerBuildWrapper extends BuildWrapper {
         return new Environment() {
             @Override
             public boolean tearDown(AbstractBuild build, BuildListener listener) throws IOException, InterruptedException {
-                return build.getAction(BuiltInContainer.class).tearDown();
+                Result result = build.getResult();
+                return build.getAction(BuiltInContainer.class).tearDown(listener, result == null || result.isBetterThan(Result.FAILURE));
             }
         };
     }
@@ -216,9 +379,34 @@ public class DockerBuildWrapper extends BuildWrapper {
 
             String[] command = this.command.length() > 0 ? this.command.split(" ") : new String[0];
 
-            return runInContainer.getDocker().runDetached(runInContainer.image, workdir,
-                    runInContainer.getVolumes(build), runInContainer.getPortsMap(), links,
-                    environment, build.getSensitiveBuildVariables(), net, memory, cpu,
+            // container agent runs as build user, so processes it launches are owned by the same user as docker exec --user would
+            String user = null;
+            if (runInContainer.agent != null) {
+                command = runInContainer.agent.command();
+                user = runInContainer.userId;
+            }
+
+            Docker docker = runInContainer.getDocker();
+            Map<String, String> volumes = runInContainer.getVolumes(build);
+            Map<Integer, Integer> ports = runInContainer.getPortsMap();
+
+            // container agent spool and private cache copies are specific to a build, so such containers can't be pooled
+            if (containerPoolSize > 0 && runInContainer.agent == null && !runInContainer.hasPrivateCaches()) {
+                String key = docker.daemonKey() + "|" + poolKey(runInContainer.image, workdir, volumes, ports, command);
+                String container = ContainerPool.claim(key);
+                refillPool(docker, key, runInContainer.image, workdir, volumes, ports, links, command);
+                if (container != null) {
+                    listener.getLogger().println("Using warm container from pool");
+                    // pooled containers are started without build environment, so we pass it on every command
+                    environment.remove("HOSTNAME");
+                    runInContainer.environment = environment;
+                    return container;
+                }
+            }
+
+            return docker.runDetached(build.getProject().getName() + "-" + build.getNumber(), runInContainer.image, workdir,
+                    volumes, ports, links,
+                    environment, build.getSensitiveBuildVariables(), net, memory, cpu, user,
                     command); // Command expected to hung until killed
 
         } catch (InterruptedException e) {
@@ -226,6 +414,90 @@ public class DockerBuildWrapper extends BuildWrapper {
         }
     }
 
+    private String poolKey(String image, String workdir, Map<String, String> volumes, Map<Integer, Integer> ports, String[] command) {
+        return image + "|" + workdir + "|" + new TreeMap<String, String>(volumes) + "|" + new TreeMap<Integer, Integer>(ports)
+                + "|" + net + "|" + memory + "|" + cpu + "|" + privileged + "|" + Arrays.toString(command);
+    }
+
+    /**
+     * Start credentials setup, dockerhost lookup and (when selector supports it) image preparation while SCM checkout
+     * is running, so a slow pull doesn't add up with a slow clone. Docker client already holds build environment, which
+     * can't be computed from this background thread.
+     */
+    private Future<String> prepareBeforeCheckout(final Docker docker, final AbstractBuild build, final BuildListener listener) {
+        return Computer.threadPoolForRemoting.submit(new java.util.concurrent.Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                docker.setupCredentials(build);
+                String image = selector.prepareDockerImageBeforeCheckout(docker, build, listener, forcePull, noCache);
+                docker.getDockerhost(image);
+                return image;
+            }
+        });
+    }
+
+    /**
+     * @return image prepared before checkout, <code>null</code> if it has to be prepared now
+     */
+    private String awaitPreparation(BuiltInContainer runInContainer, BuildListener listener) throws InterruptedException {
+        Future<String> preparation = runInContainer.preparation;
+        if (preparation == null) return null;
+        runInContainer.preparation = null;
+        try {
+            return preparation.get();
+        } catch (ExecutionException e) {
+            // we will retry in build thread, so failure gets reported as usual
+            LOGGER.log(Level.FINE, "Failed to prepare docker image before checkout", e.getCause());
+            return null;
+        }
+    }
+
+    /**
+     * Start containers in background, so pool is back to expected size for next build.
+     */
+    private void refillPool(Docker docker, final String key, final String image, final String workdir,
+                            final Map<String, String> volumes, final Map<Integer, Integer> ports,
+                            final Map<String, String> links, final String[] command) throws InterruptedException {
+        final int missing = ContainerPool.reserve(key, containerPoolSize);
+        if (missing == 0) return;
+        final long idleTimeout = TimeUnit.MINUTES.toMillis(containerPoolIdleTimeout);
+        // refill might complete after build, so doesn't report to build log
+        final Docker pool;
+        try {
+            pool = docker.detached(ContainerPool.labels());
+        } catch (IOException e) {
+            for (int i = 0; i < missing; i++) {
+                ContainerPool.abort(key);
+            }
+            LOGGER.log(Level.WARNING, "Failed to start containers for pool", e);
+            return;
+        }
+        Computer.threadPoolForRemoting.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ContainerPool.sweep(pool);
+                    for (int i = 0; i < missing; i++) {
+                        try {
+                            String container = pool.runDetached(null, image, workdir, volumes, ports, links,
+                                    new EnvVars(), Collections.emptySet(), net, memory, cpu, null, command);
+                            ContainerPool.offer(key, pool, container, idleTimeout);
+                        } catch (Exception e) {
+                            ContainerPool.abort(key);
+                            LOGGER.log(Level.WARNING, "Failed to start container for pool", e);
+                        }
+                    }
+                } finally {
+                    try {
+                        pool.close();
+                    } catch (IOException e) {
+                        LOGGER.log(Level.FINE, "Failed to release Docker credentials", e);
+                    }
+                }
+            }
+        });
+    }
+
     /**
      * Create the container environment.
      * We can't just pass result of {@link AbstractBuild#getEnvironment(TaskListener)}, as this one do include slave host
@@ -242,18 +514,19 @@ public class DockerBuildWrapper extends BuildWrapper {
     }
 
     private String whoAmI(Launcher launcher) throws IOException, InterruptedException {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        launcher.launch().cmds("id", "-u").stdout(bos).quiet(true).join();
-        String uid = bos.toString().trim();
+        // user running the agent doesn't change while it's connected, so we resolve it once per channel
+        VirtualChannel channel = launcher.getChannel();
+        String[] id = IDS.get(channel);
+        if (id == null) {
+            id = channel.call(WhoAmI);
+            IDS.put(channel, id);
+        }
 
         String gid = group;
         if (isEmpty(group)) {
-            ByteArrayOutputStream bos2 = new ByteArrayOutputStream();
-            launcher.launch().cmds("id", "-g").stdout(bos2).quiet(true).join();
-            gid = bos2.toString().trim();
+            gid = id[1];
         }
-        return uid+":"+gid;
-
+        return id[0]+":"+gid;
     }
 
     @Extension
@@ -264,6 +537,72 @@ public class DockerBuildWrapper extends BuildWrapper {
             return "Build inside a Docker container";
         }
 
+        /** docker hosts to balance builds across, for jobs which don't define their own */
+        private List<DockerServerEndpoint> dockerHosts = new ArrayList<DockerServerEndpoint>();
+
+        /** concurrent operations allowed on a docker daemon, 0 for no limit. Opt-in, so upgrade doesn't throttle builds */
+        private int maxConcurrentPulls;
+        private int maxConcurrentBuilds;
+        private int maxConcurrentStarts;
+
+        public DescriptorImpl() {
+            load();
+        }
+
+        public List<DockerServerEndpoint> getDockerHosts() {
+            return dockerHosts;
+        }
+
+        @DataBoundSetter
+        public void setDockerHosts(List<DockerServerEndpoint> dockerHosts) {
+            this.dockerHosts = dockerHosts != null ? dockerHosts : new ArrayList<DockerServerEndpoint>();
+        }
+
+        public int getMaxConcurrentPulls() {
+            return maxConcurrentPulls;
+        }
+
+        @DataBoundSetter
+        public void setMaxConcurrentPulls(int maxConcurrentPulls) {
+            this.maxConcurrentPulls = maxConcurrentPulls;
+        }
+
+        public int getMaxConcurrentBuilds() {
+            return maxConcurrentBuilds;
+        }
+
+        @DataBoundSetter
+        public void setMaxConcurrentBuilds(int maxConcurrentBuilds) {
+            this.maxConcurrentBuilds = maxConcurrentBuilds;
+        }
+
+        public int getMaxConcurrentStarts() {
+            return maxConcurrentStarts;
+        }
+
+        @DataBoundSetter
+        public void setMaxConcurrentStarts(int maxConcurrentStarts) {
+            this.maxConcurrentStarts = maxConcurrentStarts;
+        }
+
+        /**
+         * @param operation <code>pull</code>, <code>build</code> or <code>start</code>
+         */
+        int getConcurrencyLimit(String operation) {
+            if (operation.equals("pull")) return maxConcurrentPulls;
+            if (operation.equals("build")) return maxConcurrentBuilds;
+            if (operation.equals("start")) return maxConcurrentStarts;
+            return 0;
+        }
+
+        @Override
+        public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
+            setDockerHosts(null);
+            req.bindJSON(this, json);
+            save();
+            return true;
+        }
+
         public Collection<Descriptor<DockerImageSelector>> selectors() {
             return Jenkins.getInstance().getDescriptorList(DockerImageSelector.class);
         }
@@ -289,6 +628,33 @@ public class DockerBuildWrapper extends BuildWrapper {
 
     }
 
+    private static final Map<VirtualChannel, String[]> IDS = Collections.synchronizedMap(new WeakHashMap<VirtualChannel, String[]>());
+
+    /**
+     * Resolve uid and gid of the agent process, without forking <code>id</code> when JVM can tell.
+     */
+    private static Callable<String[], IOException> WhoAmI = new MasterToSlaveCallable<String[], IOException>() {
+        @Override
+        public String[] call() throws IOException {
+            try {
+                UnixSystem system = new UnixSystem();
+                return new String[] { String.valueOf(system.getUid()), String.valueOf(system.getGid()) };
+            } catch (LinkageError e) {
+                // not an OpenJDK/Oracle JVM, or native support is missing
+                return new String[] { id("-u"), id("-g") };
+            }
+        }
+
+        private String id(String option) throws IOException {
+            Process process = new ProcessBuilder("id", option).redirectErrorStream(true).start();
+            try {
+                return IOUtils.toString(process.getInputStream()).trim();
+            } finally {
+                process.destroy();
+            }
+        }
+    };
+
     private static Callable<String, IOException> GetTmpdir = new MasterToSlaveCallable<String, IOException>() {
         @Override
         public String call() {
@@ -299,6 +665,8 @@ public class DockerBuildWrapper extends BuildWrapper {
 
     private static final Logger LOGGER = Logger.getLogger(DockerBuildWrapper.class.getName());
 
+    private static final int AGENT_TIMEOUT = Integer.getInteger(DockerBuildWrapper.class.getName()+".agentTimeout", 60);
+
     // --- backward compatibility
 
     private transient boolean exposeDocker;
@@ -309,6 +677,9 @@ public class DockerBuildWrapper extends BuildWrapper {
             this.volumes.add(new Volume("/var/run/docker.sock","/var/run/docker.sock"));
         }
         if (command == null) command = "/bin/cat";
+        if (containerPoolIdleTimeout == 0) containerPoolIdleTimeout = 10;
+        if (caches == null) caches = Collections.emptyList();
+        if (dockerHosts == null) dockerHosts = Collections.emptyList();
         return this;
     }
 }
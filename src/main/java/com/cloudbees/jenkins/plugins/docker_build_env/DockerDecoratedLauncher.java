@@ -10,6 +10,9 @@ import hudson.model.Environment;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
 /**
 * @author <a href="mailto:nicolas.deloof@gmail.com">Nicolas De Loof</a>
@@ -20,7 +23,6 @@ public class DockerDecoratedLauncher extends Launcher.DecoratedLauncher {
     private final BuiltInContainer runInContainer;
     private final AbstractBuild build;
     private final String userId;
-    private EnvVars env;
     private final Launcher launcher;
 
     public DockerDecoratedLauncher(DockerImageSelector selector, Launcher launcher, BuiltInContainer runInContainer,
@@ -43,25 +45,52 @@ public class DockerDecoratedLauncher extends Launcher.DecoratedLauncher {
         // Do not decorate launcher until SCM checkout completed
         if (!runInContainer.isEnabled()) return super.launch(starter);
 
+        long start = System.nanoTime();
         try {
-            EnvVars environment = buildContainerEnvironment();
-            runInContainer.getDocker().executeIn(runInContainer.container, userId, starter, environment);
+            if (runInContainer.agent != null && ContainerAgent.supports(starter)) {
+                if (!starter.quiet()) {
+                    maskedPrintCommandLine(starter.cmds(), starter.masks(), starter.pwd());
+                }
+                return runInContainer.agent.launch(starter, runInContainer.getLaunchEnvironment(build, launcher));
+            }
+            runInContainer.getDocker().executeIn(runInContainer.container, userId, starter, runInContainer.getLaunchEnvironmentDelta(build, launcher));
+            return super.launch(starter);
         } catch (InterruptedException e) {
             throw new IOException("Caught InterruptedException", e);
+        } finally {
+            // time to get command started in container, not the command itself
+            runInContainer.getDocker().recordTiming("exec", start);
         }
-
-        return super.launch(starter);
     }
 
-    private EnvVars buildContainerEnvironment() throws IOException, InterruptedException {
+    /**
+     * Variables docker sets according to the user a command runs as, or only when a TTY is allocated. Container base
+     * environment is captured as root with a TTY, so these have to be passed even when unchanged.
+     */
+    private static final List<String> EXEC_DEPENDENT = Arrays.asList("HOME", "USER", "LOGNAME", "SHELL", "TERM");
 
-        if (this.env == null) {
-            this.env = runInContainer.getDocker().getEnv(runInContainer.container, launcher);
+    /**
+     * Variables from <code>environment</code> which aren't already set in container with the same value. Those are
+     * the only ones we need to pass to <code>docker exec</code>, so command line doesn't grow with build environment.
+     */
+    static EnvVars delta(EnvVars environment, Map<String, String> base) {
+        EnvVars delta = new EnvVars();
+        for (Map.Entry<String, String> e : environment.entrySet()) {
+            if (EXEC_DEPENDENT.contains(e.getKey()) || !e.getValue().equals(base.get(e.getKey()))) {
+                delta.put(e.getKey(), e.getValue());
+            }
         }
+        return delta;
+    }
+
+    /**
+     * Container environment, as customized by build wrappers.
+     */
+    static EnvVars containerEnvironment(EnvVars env, List<Environment> environments) {
         EnvVars environment = new EnvVars(env);
 
         // Let BuildWrapper customize environment, including PATH
-        for (Environment e : build.getEnvironments()) {
+        for (Environment e : environments) {
             e.buildEnvVars(environment);
         }
 
@@ -0,0 +1,681 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+import jenkins.security.MasterToSlaveCallable;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.jenkinsci.plugins.docker.commons.credentials.DockerServerEndpoint;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Alternate backend for {@link Docker} which talks to the Docker Engine REST API rather than forking the docker CLI.
+ * API calls are ran on the node hosting the build, using a {@link DockerEngineClient} pooling connections to the daemon.
+ * <p>
+ * Only unix socket and plain TCP endpoints are supported. {@link Docker} falls back to the CLI for TLS secured daemons.
+ */
+class DockerEngineApi {
+
+    static final String API_VERSION = "/v1.25";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final Pattern SUCCESSFULLY_BUILT = Pattern.compile("Successfully built ([0-9a-f]+)");
+
+    private final VirtualChannel channel;
+    private final String endpoint;
+    private final String dockerConfig;
+    private final TaskListener listener;
+    private final boolean verbose;
+
+    private DockerEngineApi(VirtualChannel channel, String endpoint, String dockerConfig, TaskListener listener, boolean verbose) {
+        this.channel = channel;
+        this.endpoint = endpoint;
+        this.dockerConfig = dockerConfig;
+        this.listener = listener;
+        this.verbose = verbose;
+    }
+
+    /**
+     * @return API backend for this docker host, or <code>null</code> if the API can't be used and we have to stick to
+     * docker CLI.
+     */
+    static DockerEngineApi create(DockerServerEndpoint dockerHost, EnvVars env, VirtualChannel channel, TaskListener listener, boolean verbose) {
+        String endpoint = endpoint(dockerHost, env);
+        if (endpoint == null) return null;
+        return new DockerEngineApi(channel, endpoint, env.get("DOCKER_CONFIG"), listener, verbose);
+    }
+
+    /**
+     * @return daemon endpoint {@link DockerEngineClient} can connect to, or <code>null</code> if this docker host is
+     * only reachable by docker CLI.
+     */
+    static String endpoint(DockerServerEndpoint dockerHost, EnvVars env) {
+        if (StringUtils.isNotEmpty(dockerHost.getCredentialsId()) || StringUtils.isNotEmpty(env.get("DOCKER_TLS_VERIFY"))) {
+            // TLS client authentication is only supported by docker CLI
+            return null;
+        }
+        String endpoint = dockerHost.getUri();
+        if (StringUtils.isBlank(endpoint)) endpoint = env.get("DOCKER_HOST");
+        if (StringUtils.isBlank(endpoint)) endpoint = DockerEngineClient.DEFAULT_ENDPOINT;
+        if (!DockerEngineClient.supports(endpoint)) return null;
+        return endpoint;
+    }
+
+    String getEndpoint() {
+        return endpoint;
+    }
+
+    public boolean hasImage(String image) throws IOException, InterruptedException {
+        return channel.call(new HasImage(endpoint, image));
+    }
+
+    /**
+     * @return pull status, or <code>null</code> if registry credentials can't be forwarded to the API and docker CLI
+     * has to be used.
+     */
+    public Boolean pullImage(String image) throws IOException, InterruptedException {
+        return channel.call(new PullImage(endpoint, image, dockerConfig, listener, verbose));
+    }
+
+    /**
+     * Build image, streaming the build context from the node hosting it straight to daemon.
+     * @return built image ID, <code>null</code> if build failed
+     */
+    public String buildImage(FilePath context, String dockerfile, boolean fullContext, boolean forcePull, boolean noCache,
+                             Map<String, String> labels) throws IOException, InterruptedException {
+        StringBuilder json = new StringBuilder("{");
+        for (Map.Entry<String, String> label : labels.entrySet()) {
+            if (json.length() > 1) json.append(',');
+            json.append(quote(label.getKey())).append(':').append(quote(label.getValue()));
+        }
+        String path = API_VERSION + "/build?rm=1&dockerfile=" + encode(BuildContext.normalize(dockerfile))
+                + "&labels=" + encode(json.append('}').toString());
+        if (forcePull) path += "&pull=1";
+        if (noCache) path += "&nocache=1";
+        return context.act(new BuildImage(endpoint, path, dockerfile, fullContext, dockerConfig, listener, verbose));
+    }
+
+    public String runDetached(String name, String image, String workdir, Map<String, String> volumes, Map<Integer, Integer> ports,
+                              Map<String, String> links, Map<String, String> environment, boolean privileged,
+                              String net, String memory, String cpu, String user, List<String> extraHosts, Map<String, String> labels,
+                              String... command) throws IOException, InterruptedException {
+        String config = containerConfig(image, workdir, volumes, ports, links, environment, privileged, net, memory, cpu, user, extraHosts, labels, command);
+        String path = "/containers/create" + (name != null ? "?name=" + encode(name) : "");
+        return channel.call(new RunDetached(endpoint, path, config, listener, verbose));
+    }
+
+    /**
+     * <code>/containers/create</code> request body, with the same semantics as <code>docker run</code> options.
+     */
+    static String containerConfig(String image, String workdir, Map<String, String> volumes, Map<Integer, Integer> ports,
+                                  Map<String, String> links, Map<String, String> environment, boolean privileged,
+                                  String net, String memory, String cpu, String user, List<String> extraHosts,
+                                  Map<String, String> labels, String... command) {
+        StringBuilder config = new StringBuilder("{");
+        field(config, "Image", image);
+        field(config, "WorkingDir", workdir);
+        if (user != null) field(config, "User", user);
+        config.append("\"Tty\":true,");
+        config.append("\"Cmd\":").append(array(command)).append(',');
+
+        StringBuilder env = new StringBuilder("[");
+        for (Map.Entry<String, String> e : environment.entrySet()) {
+            if (env.length() > 1) env.append(',');
+            env.append(quote(e.getKey() + "=" + e.getValue()));
+        }
+        config.append("\"Env\":").append(env).append("],");
+
+        StringBuilder labelMap = new StringBuilder("{");
+        for (Map.Entry<String, String> label : labels.entrySet()) {
+            if (labelMap.length() > 1) labelMap.append(',');
+            labelMap.append(quote(label.getKey())).append(':').append(quote(label.getValue()));
+        }
+        config.append("\"Labels\":").append(labelMap).append("},");
+
+        StringBuilder exposed = new StringBuilder("{");
+        StringBuilder bindings = new StringBuilder("{");
+        for (Map.Entry<Integer, Integer> port : ports.entrySet()) {
+            if (exposed.length() > 1) { exposed.append(','); bindings.append(','); }
+            exposed.append(quote(port.getValue() + "/tcp")).append(":{}");
+            bindings.append(quote(port.getValue() + "/tcp")).append(":[{\"HostPort\":").append(quote(String.valueOf(port.getKey()))).append("}]");
+        }
+        config.append("\"ExposedPorts\":").append(exposed).append("},");
+
+        StringBuilder host = new StringBuilder("{");
+        StringBuilder binds = new StringBuilder("[");
+        for (Map.Entry<String, String> volume : volumes.entrySet()) {
+            if (binds.length() > 1) binds.append(',');
+            binds.append(quote(volume.getKey() + ":" + volume.getValue() + ":rw"));
+        }
+        host.append("\"Binds\":").append(binds).append("],");
+        host.append("\"PortBindings\":").append(bindings).append("},");
+        StringBuilder linkList = new StringBuilder("[");
+        for (Map.Entry<String, String> link : links.entrySet()) {
+            if (linkList.length() > 1) linkList.append(',');
+            linkList.append(quote(link.getKey() + ":" + link.getValue()));
+        }
+        host.append("\"Links\":").append(linkList).append("],");
+        host.append("\"ExtraHosts\":").append(array(extraHosts.toArray(new String[extraHosts.size()]))).append(',');
+        if (StringUtils.isNotBlank(net)) field(host, "NetworkMode", net);
+        if (StringUtils.isNotBlank(memory)) host.append("\"Memory\":").append(parseMemory(memory)).append(',');
+        if (StringUtils.isNotBlank(cpu)) host.append("\"CpuShares\":").append(Integer.parseInt(cpu.trim())).append(',');
+        host.append("\"Privileged\":").append(privileged).append('}');
+        config.append("\"HostConfig\":").append(host).append('}');
+        return config.toString();
+    }
+
+    public EnvVars getEnv(String container) throws IOException, InterruptedException {
+        return channel.call(new GetEnv(endpoint, container, listener, verbose));
+    }
+
+    /**
+     * @return container has been stopped, or wasn't running anymore
+     */
+    public boolean kill(String container) throws IOException, InterruptedException {
+        return channel.call(new Kill(endpoint, container, listener, verbose));
+    }
+
+    public boolean isRunning(String container) throws IOException, InterruptedException {
+        return channel.call(new IsRunning(endpoint, container));
+    }
+
+    public boolean remove(String container) throws IOException, InterruptedException {
+        return channel.call(new Remove(endpoint, container));
+    }
+
+    /**
+     * @return gateway of the default bridge network, or <code>null</code> if daemon doesn't expose one.
+     */
+    public String getBridgeGateway() throws IOException, InterruptedException {
+        return channel.call(new BridgeGateway(endpoint));
+    }
+
+    /**
+     * Convert a docker CLI memory limit (<code>512m</code>, <code>1.5g</code>, ...) into bytes.
+     * @throws NumberFormatException if docker CLI wouldn't accept this limit either
+     */
+    static long parseMemory(String memory) {
+        String m = memory.trim().toLowerCase();
+        if (m.endsWith("b")) m = m.substring(0, m.length() - 1);
+        if (m.length() == 0) throw new NumberFormatException("Invalid memory limit " + memory);
+        long unit = 1;
+        char suffix = m.charAt(m.length() - 1);
+        switch (suffix) {
+            case 'k': unit = 1024L; break;
+            case 'm': unit = 1024L * 1024; break;
+            case 'g': unit = 1024L * 1024 * 1024; break;
+            case 't': unit = 1024L * 1024 * 1024 * 1024; break;
+        }
+        if (unit > 1) m = m.substring(0, m.length() - 1);
+        // docker CLI accepts decimal values, and rounds to bytes
+        return new BigDecimal(m.trim()).multiply(BigDecimal.valueOf(unit)).setScale(0, RoundingMode.HALF_UP).longValue();
+    }
+
+    static String encode(String s) {
+        try {
+            return URLEncoder.encode(s, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void field(StringBuilder json, String key, String value) {
+        json.append(quote(key)).append(':').append(quote(value)).append(',');
+    }
+
+    static String array(String... values) {
+        StringBuilder json = new StringBuilder("[");
+        for (String value : values) {
+            if (json.length() > 1) json.append(',');
+            json.append(quote(value));
+        }
+        return json.append(']').toString();
+    }
+
+    static String quote(String s) {
+        StringBuilder json = new StringBuilder("\"");
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"': json.append("\\\""); break;
+                case '\\': json.append("\\\\"); break;
+                case '\n': json.append("\\n"); break;
+                case '\r': json.append("\\r"); break;
+                case '\t': json.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+            }
+        }
+        return json.append('"').toString();
+    }
+
+    /**
+     * Read docker CLI configuration, where registry credentials have been stored by <code>docker login</code>.
+     */
+    private static JSONObject readConfig(String dockerConfig) throws IOException {
+        File config = new File(dockerConfig != null ? dockerConfig : System.getProperty("user.home") + "/.docker", "config.json");
+        if (!config.exists()) return null;
+        return JSONObject.fromObject(FileUtils.readFileToString(config, "UTF-8"));
+    }
+
+    /**
+     * @return username and password from a docker config <code>auths</code> entry, <code>null</code> if not set.
+     */
+    private static String[] credentials(JSONObject auth) {
+        String encoded = auth.optString("auth", null);
+        if (StringUtils.isEmpty(encoded)) return null;
+        String credentials = new String(Base64.decodeBase64(encoded), UTF8);
+        int colon = credentials.indexOf(':');
+        if (colon < 0) return null;
+        return new String[] { credentials.substring(0, colon), credentials.substring(colon + 1) };
+    }
+
+    /**
+     * Build <code>X-Registry-Auth</code> header to authenticate against <code>registry</code>.
+     */
+    private static String registryAuth(JSONObject config, String registry) {
+        JSONObject auths = config.optJSONObject("auths");
+        if (auths == null) return null;
+        for (Iterator it = auths.keys(); it.hasNext();) {
+            String key = (String) it.next();
+            String host = key.replaceFirst("^https?://", "");
+            if (key.equals(registry) || host.equals(registry) || host.startsWith(registry + "/")) {
+                String[] credentials = credentials(auths.getJSONObject(key));
+                if (credentials == null) return null;
+                String header = "{" + "\"username\":" + quote(credentials[0])
+                        + ",\"password\":" + quote(credentials[1])
+                        + ",\"serveraddress\":" + quote(key) + "}";
+                return Base64.encodeBase64URLSafeString(header.getBytes(UTF8));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Build <code>X-Registry-Config</code> header, with credentials for all registries we're logged in, so daemon
+     * can pull base images during a build.
+     */
+    private static String registryConfig(JSONObject config) {
+        JSONObject auths = config != null ? config.optJSONObject("auths") : null;
+        if (auths == null || auths.isEmpty()) return null;
+        StringBuilder header = new StringBuilder("{");
+        for (Iterator it = auths.keys(); it.hasNext();) {
+            String key = (String) it.next();
+            String[] credentials = credentials(auths.getJSONObject(key));
+            if (credentials == null) continue;
+            if (header.length() > 1) header.append(',');
+            header.append(quote(key)).append(":{\"username\":").append(quote(credentials[0]))
+                    .append(",\"password\":").append(quote(credentials[1])).append('}');
+        }
+        if (header.length() == 1) return null;
+        return Base64.encodeBase64URLSafeString(header.append('}').toString().getBytes(UTF8));
+    }
+
+    private static void log(TaskListener listener, boolean verbose, String method, String path) {
+        if (verbose) {
+            listener.getLogger().println("$ docker API " + method + " " + path);
+        }
+    }
+
+    private static IOException failure(String message, DockerEngineClient.Response response) throws IOException {
+        return new IOException(message + " (HTTP " + response.status + "): " + response.asString().trim());
+    }
+
+    // --- callables ran on the node hosting the build
+
+    private static final class HasImage extends MasterToSlaveCallable<Boolean, IOException> {
+        private final String endpoint;
+        private final String image;
+
+        HasImage(String endpoint, String image) {
+            this.endpoint = endpoint;
+            this.image = image;
+        }
+
+        @Override
+        public Boolean call() throws IOException {
+            DockerEngineClient.Response response = DockerEngineClient.of(endpoint)
+                    .execute("GET", API_VERSION + "/images/" + image + "/json");
+            response.close();
+            return response.isSuccessful();
+        }
+    }
+
+    private static final class PullImage extends MasterToSlaveCallable<Boolean, IOException> {
+        private final String endpoint;
+        private final String image;
+        private final String dockerConfig;
+        private final TaskListener listener;
+        private final boolean verbose;
+
+        PullImage(String endpoint, String image, String dockerConfig, TaskListener listener, boolean verbose) {
+            this.endpoint = endpoint;
+            this.image = image;
+            this.dockerConfig = dockerConfig;
+            this.listener = listener;
+            this.verbose = verbose;
+        }
+
+        @Override
+        public Boolean call() throws IOException {
+            JSONObject json = readConfig(dockerConfig);
+            String auth = null;
+            if (json != null) {
+                auth = registryAuth(json, registry(image));
+                if (auth == null && (json.has("credsStore") || json.has("credHelpers"))) {
+                    // credential helpers are only supported by docker CLI
+                    return null;
+                }
+            }
+
+            String path = API_VERSION + "/images/create?fromImage=" + encode(image);
+            if (image.indexOf('@') < 0 && image.lastIndexOf(':') <= image.lastIndexOf('/')) {
+                path += "&tag=latest";
+            }
+            log(listener, verbose, "POST", path);
+            DockerEngineClient.Response response = DockerEngineClient.of(endpoint)
+                    .execute("POST", path, auth != null ? Collections.singletonMap("X-Registry-Auth", auth) : null, (String) null);
+            try {
+                if (!response.isSuccessful()) {
+                    listener.getLogger().println(response.asString().trim());
+                    return false;
+                }
+                // errors are reported within the progress stream
+                String line;
+                while ((line = response.readLine()) != null) {
+                    if (line.length() == 0) continue;
+                    JSONObject progress = JSONObject.fromObject(line);
+                    if (progress.has("error")) {
+                        listener.getLogger().println(progress.getString("error"));
+                        return false;
+                    }
+                    if (verbose && progress.has("status") && !progress.has("progressDetail")) {
+                        listener.getLogger().println(progress.getString("status"));
+                    }
+                }
+                return true;
+            } finally {
+                response.close();
+            }
+        }
+
+        private static String registry(String image) {
+            int slash = image.indexOf('/');
+            if (slash > 0) {
+                String first = image.substring(0, slash);
+                if (first.contains(".") || first.contains(":") || first.equals("localhost")) return first;
+            }
+            return "https://index.docker.io/v1/";
+        }
+    }
+
+    private static final class BuildImage extends MasterToSlaveFileCallable<String> {
+        private final String endpoint;
+        private final String path;
+        private final String dockerfile;
+        private final boolean fullContext;
+        private final String dockerConfig;
+        private final TaskListener listener;
+        private final boolean verbose;
+
+        BuildImage(String endpoint, String path, String dockerfile, boolean fullContext, String dockerConfig, TaskListener listener, boolean verbose) {
+            this.endpoint = endpoint;
+            this.path = path;
+            this.dockerfile = dockerfile;
+            this.fullContext = fullContext;
+            this.dockerConfig = dockerConfig;
+            this.listener = listener;
+            this.verbose = verbose;
+        }
+
+        @Override
+        public String invoke(File context, VirtualChannel channel) throws IOException, InterruptedException {
+            String registryConfig = registryConfig(readConfig(dockerConfig));
+            final BuildContext buildContext = new BuildContext(context, dockerfile, fullContext);
+
+            log(listener, verbose, "POST", path);
+            DockerEngineClient.Response response = DockerEngineClient.of(endpoint).execute("POST", path,
+                    registryConfig != null ? Collections.singletonMap("X-Registry-Config", registryConfig) : null,
+                    "application/x-tar", new DockerEngineClient.Body() {
+                        public void writeTo(OutputStream out) throws IOException {
+                            try {
+                                buildContext.writeTar(out);
+                            } catch (InterruptedException e) {
+                                throw new InterruptedIOException("Interrupted while sending build context");
+                            }
+                        }
+                    });
+            try {
+                if (!response.isSuccessful()) {
+                    listener.getLogger().println(response.asString().trim());
+                    return null;
+                }
+                String imageId = null;
+                String built = null;
+                String line;
+                while ((line = response.readLine()) != null) {
+                    if (line.length() == 0) continue;
+                    JSONObject progress = JSONObject.fromObject(line);
+                    if (progress.has("error")) {
+                        listener.getLogger().println(progress.getString("error"));
+                        return null;
+                    }
+                    if (progress.has("stream")) {
+                        String stream = progress.getString("stream");
+                        listener.getLogger().print(stream);
+                        Matcher m = SUCCESSFULLY_BUILT.matcher(stream);
+                        if (m.find()) built = m.group(1);
+                    }
+                    JSONObject aux = progress.optJSONObject("aux");
+                    if (aux != null && aux.has("ID")) {
+                        imageId = aux.getString("ID");
+                    }
+                }
+                // older daemons don't report image ID but as the last build output line
+                return imageId != null ? imageId : built;
+            } finally {
+                response.close();
+            }
+        }
+    }
+
+    private static final class RunDetached extends MasterToSlaveCallable<String, IOException> {
+        private final String endpoint;
+        private final String path;
+        private final String config;
+        private final TaskListener listener;
+        private final boolean verbose;
+
+        RunDetached(String endpoint, String path, String config, TaskListener listener, boolean verbose) {
+            this.endpoint = endpoint;
+            this.path = path;
+            this.config = config;
+            this.listener = listener;
+            this.verbose = verbose;
+        }
+
+        @Override
+        public String call() throws IOException {
+            DockerEngineClient client = DockerEngineClient.of(endpoint);
+            log(listener, verbose, "POST", API_VERSION + path);
+            DockerEngineClient.Response response = client.execute("POST", API_VERSION + path, null, config);
+            if (!response.isSuccessful()) {
+                throw failure("Failed to create docker container", response);
+            }
+            String container = JSONObject.fromObject(response.asString()).getString("Id");
+
+            log(listener, verbose, "POST", API_VERSION + "/containers/" + container + "/start");
+            response = client.execute("POST", API_VERSION + "/containers/" + container + "/start");
+            if (!response.isSuccessful()) {
+                throw failure("Failed to run docker image", response);
+            }
+            response.close();
+            return container;
+        }
+    }
+
+    private static final class GetEnv extends MasterToSlaveCallable<EnvVars, IOException> {
+        private final String endpoint;
+        private final String container;
+        private final TaskListener listener;
+        private final boolean verbose;
+
+        GetEnv(String endpoint, String container, TaskListener listener, boolean verbose) {
+            this.endpoint = endpoint;
+            this.container = container;
+            this.listener = listener;
+            this.verbose = verbose;
+        }
+
+        @Override
+        public EnvVars call() throws IOException {
+            DockerEngineClient client = DockerEngineClient.of(endpoint);
+            String path = API_VERSION + "/containers/" + container + "/exec";
+            log(listener, verbose, "POST", path);
+            DockerEngineClient.Response response = client.execute("POST", path, null,
+                    "{\"AttachStdout\":true,\"AttachStderr\":true,\"Tty\":true,\"Cmd\":[\"env\"]}");
+            if (!response.isSuccessful()) {
+                throw failure("Failed to retrieve container's environment", response);
+            }
+            String exec = JSONObject.fromObject(response.asString()).getString("Id");
+
+            response = client.execute("POST", API_VERSION + "/exec/" + exec + "/start", null, "{\"Detach\":false,\"Tty\":true}");
+            if (!response.isSuccessful()) {
+                throw failure("Failed to retrieve container's environment", response);
+            }
+            EnvVars env = new EnvVars();
+            try {
+                String line;
+                while ((line = response.readLine()) != null) {
+                    if (line.length() > 0) env.addLine(line);
+                }
+            } finally {
+                response.close();
+            }
+
+            response = client.execute("GET", API_VERSION + "/exec/" + exec + "/json");
+            if (!response.isSuccessful() || JSONObject.fromObject(response.asString()).optInt("ExitCode", -1) != 0) {
+                throw new IOException("Failed to retrieve container's environment");
+            }
+            return env;
+        }
+    }
+
+    private static final class BridgeGateway extends MasterToSlaveCallable<String, IOException> {
+        private final String endpoint;
+
+        BridgeGateway(String endpoint) {
+            this.endpoint = endpoint;
+        }
+
+        @Override
+        public String call() throws IOException {
+            DockerEngineClient.Response response = DockerEngineClient.of(endpoint)
+                    .execute("GET", API_VERSION + "/networks/bridge");
+            if (!response.isSuccessful()) {
+                response.close();
+                return null;
+            }
+            JSONObject ipam = JSONObject.fromObject(response.asString()).optJSONObject("IPAM");
+            JSONArray configs = ipam != null ? ipam.optJSONArray("Config") : null;
+            if (configs == null) return null;
+            for (int i = 0; i < configs.size(); i++) {
+                String gateway = configs.getJSONObject(i).optString("Gateway", "");
+                if (gateway.matches("\\d+\\.\\d+\\.\\d+\\.\\d+")) {
+                    return gateway;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final class IsRunning extends MasterToSlaveCallable<Boolean, IOException> {
+        private final String endpoint;
+        private final String container;
+
+        IsRunning(String endpoint, String container) {
+            this.endpoint = endpoint;
+            this.container = container;
+        }
+
+        @Override
+        public Boolean call() throws IOException {
+            DockerEngineClient.Response response = DockerEngineClient.of(endpoint)
+                    .execute("GET", API_VERSION + "/containers/" + container + "/json");
+            if (!response.isSuccessful()) {
+                response.close();
+                return false;
+            }
+            JSONObject state = JSONObject.fromObject(response.asString()).optJSONObject("State");
+            return state != null && state.optBoolean("Running");
+        }
+    }
+
+    private static final class Remove extends MasterToSlaveCallable<Boolean, IOException> {
+        private final String endpoint;
+        private final String container;
+
+        Remove(String endpoint, String container) {
+            this.endpoint = endpoint;
+            this.container = container;
+        }
+
+        @Override
+        public Boolean call() throws IOException {
+            DockerEngineClient.Response response = DockerEngineClient.of(endpoint)
+                    .execute("DELETE", API_VERSION + "/containers/" + container + "?force=true");
+            response.close();
+            return response.isSuccessful();
+        }
+    }
+
+    private static final class Kill extends MasterToSlaveCallable<Boolean, IOException> {
+        private final String endpoint;
+        private final String container;
+        private final TaskListener listener;
+        private final boolean verbose;
+
+        Kill(String endpoint, String container, TaskListener listener, boolean verbose) {
+            this.endpoint = endpoint;
+            this.container = container;
+            this.listener = listener;
+            this.verbose = verbose;
+        }
+
+        @Override
+        public Boolean call() throws IOException {
+            String path = API_VERSION + "/containers/" + container + "/kill";
+            log(listener, verbose, "POST", path);
+            DockerEngineClient.Response response = DockerEngineClient.of(endpoint).execute("POST", path);
+            response.close();
+            // 409 when container isn't running
+            return response.isSuccessful() || response.status == 409;
+        }
+    }
+}
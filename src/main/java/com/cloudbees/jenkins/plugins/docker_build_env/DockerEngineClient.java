@@ -0,0 +1,404 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import jnr.unixsocket.UnixSocketAddress;
+import jnr.unixsocket.UnixSocketChannel;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.channels.Channels;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingDeque;
+
+/**
+ * Minimal HTTP/1.1 client for the Docker Engine REST API, connecting either to a unix socket or to a plain TCP endpoint.
+ * Connections are kept alive and pooled per endpoint, so successive API calls from the same node reuse them.
+ * <p>
+ * This class is only used on the node hosting the Docker client, typically from a {@link jenkins.security.MasterToSlaveCallable}.
+ */
+class DockerEngineClient {
+
+    static final String DEFAULT_ENDPOINT = "unix:///var/run/docker.sock";
+
+    private static final int MAX_IDLE = Integer.getInteger(DockerEngineClient.class.getName()+".maxIdle", 8);
+
+    private static final ConcurrentMap<String, DockerEngineClient> CLIENTS = new ConcurrentHashMap<String, DockerEngineClient>();
+
+    private final String socketPath;
+    private final String host;
+    private final int port;
+    private final BlockingDeque<Connection> idle = new LinkedBlockingDeque<Connection>();
+
+    private DockerEngineClient(String socketPath, String host, int port) {
+        this.socketPath = socketPath;
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Tell if the endpoint URI (as used by <code>DOCKER_HOST</code>) can be handled by this client.
+     */
+    static boolean supports(String endpoint) {
+        return endpoint.startsWith("unix://") || endpoint.startsWith("tcp://") || endpoint.startsWith("http://");
+    }
+
+    static DockerEngineClient of(String endpoint) {
+        DockerEngineClient client = CLIENTS.get(endpoint);
+        if (client == null) {
+            if (endpoint.startsWith("unix://")) {
+                client = new DockerEngineClient(endpoint.substring("unix://".length()), null, -1);
+            } else if (supports(endpoint)) {
+                URI uri = URI.create(endpoint);
+                client = new DockerEngineClient(null, uri.getHost(), uri.getPort() > 0 ? uri.getPort() : 2375);
+            } else {
+                throw new IllegalArgumentException("Unsupported Docker endpoint "+endpoint);
+            }
+            DockerEngineClient existing = CLIENTS.putIfAbsent(endpoint, client);
+            if (existing != null) client = existing;
+        }
+        return client;
+    }
+
+    /**
+     * Body of a request, streamed to the daemon using chunked transfer encoding.
+     */
+    interface Body {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    Response execute(String method, String path) throws IOException {
+        return execute(method, path, null, (byte[]) null);
+    }
+
+    Response execute(String method, String path, Map<String, String> headers, String json) throws IOException {
+        return execute(method, path, headers, json != null ? json.getBytes("UTF-8") : null);
+    }
+
+    Response execute(String method, String path, Map<String, String> headers, byte[] body) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            Connection connection = idle.pollFirst();
+            boolean pooled = connection != null;
+            if (!pooled) connection = connect();
+            try {
+                writeHead(connection, method, path, headers, "application/json", body != null ? String.valueOf(body.length) : "0", false);
+                if (body != null) connection.out.write(body);
+                connection.out.flush();
+                return readResponse(connection);
+            } catch (IOException e) {
+                connection.close();
+                // daemon may have closed an idle pooled connection, retry once on a fresh one
+                if (!pooled || attempt > 0) throw e;
+            }
+        }
+    }
+
+    Response execute(String method, String path, Map<String, String> headers, String contentType, Body body) throws IOException {
+        // streamed bodies can't be replayed, so always use a fresh connection
+        Connection connection = connect();
+        try {
+            writeHead(connection, method, path, headers, contentType, null, true);
+            ChunkedOutputStream chunked = new ChunkedOutputStream(connection.out);
+            body.writeTo(chunked);
+            chunked.close();
+            connection.out.flush();
+            return readResponse(connection);
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    private Connection connect() throws IOException {
+        if (socketPath != null) {
+            UnixSocketChannel channel = UnixSocketChannel.open(new UnixSocketAddress(new File(socketPath)));
+            return new Connection(channel, Channels.newInputStream(channel), Channels.newOutputStream(channel));
+        }
+        Socket socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        return new Connection(socket, socket.getInputStream(), socket.getOutputStream());
+    }
+
+    private void writeHead(Connection connection, String method, String path, Map<String, String> headers,
+                           String contentType, String contentLength, boolean chunked) throws IOException {
+        StringBuilder head = new StringBuilder();
+        head.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+        head.append("Host: docker\r\n");
+        head.append("User-Agent: docker-custom-build-environment\r\n");
+        if (headers != null) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+            }
+        }
+        head.append("Content-Type: ").append(contentType).append("\r\n");
+        if (chunked) {
+            head.append("Transfer-Encoding: chunked\r\n");
+        } else {
+            head.append("Content-Length: ").append(contentLength).append("\r\n");
+        }
+        head.append("\r\n");
+        connection.out.write(head.toString().getBytes("ISO-8859-1"));
+    }
+
+    private Response readResponse(Connection connection) throws IOException {
+        String statusLine = readLine(connection.in);
+        if (statusLine == null) throw new IOException("Docker daemon closed connection");
+        String[] parts = statusLine.split(" ", 3);
+        if (parts.length < 2) throw new IOException("Unexpected response from Docker daemon: "+statusLine);
+        int status = Integer.parseInt(parts[1]);
+
+        Map<String, String> headers = new HashMap<String, String>();
+        String line;
+        while ((line = readLine(connection.in)) != null && line.length() > 0) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+            }
+        }
+
+        InputStream body;
+        boolean reusable = !"close".equalsIgnoreCase(headers.get("connection"));
+        if ("chunked".equalsIgnoreCase(headers.get("transfer-encoding"))) {
+            body = new ChunkedInputStream(connection.in);
+        } else if (headers.containsKey("content-length")) {
+            body = new BoundedInputStream(connection.in, Long.parseLong(headers.get("content-length")));
+        } else if (status == 204 || status == 304) {
+            body = new BoundedInputStream(connection.in, 0);
+        } else {
+            // raw stream (for sample exec output), delimited by connection close
+            body = connection.in;
+            reusable = false;
+        }
+        return new Response(status, Collections.unmodifiableMap(headers), body, connection, reusable);
+    }
+
+    private void release(Connection connection) {
+        if (idle.size() < MAX_IDLE) {
+            idle.offerFirst(connection);
+        } else {
+            connection.close();
+        }
+    }
+
+    static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') break;
+            if (b != '\r') line.write(b);
+        }
+        if (b == -1 && line.size() == 0) return null;
+        return line.toString("ISO-8859-1");
+    }
+
+    final class Response implements Closeable {
+
+        final int status;
+        final Map<String, String> headers;
+        final InputStream body;
+        private final Connection connection;
+        private final boolean reusable;
+        private boolean closed;
+
+        private Response(int status, Map<String, String> headers, InputStream body, Connection connection, boolean reusable) {
+            this.status = status;
+            this.headers = headers;
+            this.body = body;
+            this.connection = connection;
+            this.reusable = reusable;
+        }
+
+        boolean isSuccessful() {
+            return status >= 200 && status < 300;
+        }
+
+        String asString() throws IOException {
+            try {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = body.read(buffer)) != -1) {
+                    out.write(buffer, 0, n);
+                }
+                return out.toString("UTF-8");
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * Read next line from response body, <code>null</code> once body has been fully consumed.
+         */
+        String readLine() throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = body.read()) != -1) {
+                if (b == '\n') break;
+                if (b != '\r') line.write(b);
+            }
+            if (b == -1 && line.size() == 0) return null;
+            return line.toString("UTF-8");
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            if (!reusable) {
+                connection.close();
+                return;
+            }
+            try {
+                byte[] buffer = new byte[8192];
+                while (body.read(buffer) != -1) {
+                    // drain remaining body so connection can be reused
+                }
+                release(connection);
+            } catch (IOException e) {
+                connection.close();
+            }
+        }
+    }
+
+    private static final class Connection {
+        private final Closeable channel;
+        private final InputStream in;
+        private final OutputStream out;
+
+        Connection(Closeable channel, InputStream in, OutputStream out) {
+            this.channel = channel;
+            this.in = new BufferedInputStream(in);
+            this.out = new BufferedOutputStream(out);
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private static final class BoundedInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+
+        BoundedInputStream(InputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) return -1;
+            int b = in.read();
+            if (b == -1) throw new IOException("Premature end of response body");
+            remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) return -1;
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n == -1) throw new IOException("Premature end of response body");
+            remaining -= n;
+            return n;
+        }
+    }
+
+    private static final class ChunkedInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+        private boolean eof;
+
+        ChunkedInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        private boolean nextChunk() throws IOException {
+            if (eof) return false;
+            if (remaining == 0) {
+                String size = readLine(in);
+                if (size != null && size.length() == 0) size = readLine(in); // CRLF terminating previous chunk
+                if (size == null) throw new IOException("Premature end of chunked response body");
+                int ext = size.indexOf(';');
+                remaining = Long.parseLong((ext >= 0 ? size.substring(0, ext) : size).trim(), 16);
+                if (remaining == 0) {
+                    // skip trailers
+                    String trailer;
+                    while ((trailer = readLine(in)) != null && trailer.length() > 0) {
+                        // ignore
+                    }
+                    eof = true;
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!nextChunk()) return -1;
+            int b = in.read();
+            if (b == -1) throw new IOException("Premature end of chunked response body");
+            remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (!nextChunk()) return -1;
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n == -1) throw new IOException("Premature end of chunked response body");
+            remaining -= n;
+            return n;
+        }
+    }
+
+    /**
+     * Chunked transfer encoding, closing this stream writes the last chunk but keeps the underlying connection open.
+     */
+    private static final class ChunkedOutputStream extends FilterOutputStream {
+        private boolean closed;
+
+        ChunkedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return;
+            out.write((Integer.toHexString(len) + "\r\n").getBytes("ISO-8859-1"));
+            out.write(b, off, len);
+            out.write('\r');
+            out.write('\n');
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            out.write("0\r\n\r\n".getBytes("ISO-8859-1"));
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pick the docker host to run a build on, among a pool of hosts, based on their load and the images they already
+ * have. Load is the ratio of running containers to CPUs, the share of host memory reserved by builds we placed there,
+ * and pulls in progress. This is an estimate from <code>docker info</code> counters, not what containers actually use,
+ * which would require collecting stats for every container. Hosts which fail to answer are taken out of rotation, for
+ * an increasing delay.
+ */
+class DockerHostBalancer {
+
+    private static final String FORMAT = "{{.ContainersRunning}}|{{.NCPU}}|{{.MemTotal}}";
+
+    /** daemon load is cached for this long, as probing all hosts for every build would be costly */
+    private static final long PROBE_TTL = TimeUnit.SECONDS.toMillis(Integer.getInteger(DockerHostBalancer.class.getName()+".probeTtl", 10));
+
+    private static final int PROBE_TIMEOUT = Integer.getInteger(DockerHostBalancer.class.getName()+".probeTimeout", 10);
+
+    private static final long MIN_BACKOFF = TimeUnit.SECONDS.toMillis(30);
+
+    private static final long MAX_BACKOFF = TimeUnit.MINUTES.toMillis(10);
+
+    /** load a pull in progress accounts for */
+    private static final double PULL_WEIGHT = 0.5;
+
+    /** load we'd accept to run on a host already having the build image, rather than pulling it elsewhere */
+    private static final double LOCALITY_BONUS = 0.5;
+
+    private static final ConcurrentMap<String, Host> HOSTS = new ConcurrentHashMap<String, Host>();
+
+    /** host each running build has been placed on, by build ID */
+    private static final ConcurrentMap<String, Placement> PLACED = new ConcurrentHashMap<String, Placement>();
+
+    /**
+     * Pick the least loaded healthy host. Docker clients for the other hosts are closed.
+     * @param images images the build is expected to run, to prefer a host which already has them
+     * @param memory memory limit of the build container, in bytes. 0 if not set
+     */
+    static Docker select(List<Docker> candidates, Collection<String> images, long memory, AbstractBuild build, TaskListener listener) throws IOException, InterruptedException {
+        Docker selected = null;
+        boolean done = false;
+        try {
+            double best = Double.MAX_VALUE;
+            for (Docker docker : candidates) {
+                Host host = host(docker);
+                if (!host.isHealthy()) continue;
+                try {
+                    docker.setupCredentials(build);
+                } catch (IOException e) {
+                    // not the daemon's fault, so host health is left as is
+                    LOGGER.log(Level.FINE, "Failed to set up credentials for docker host " + docker.daemonKey(), e);
+                    continue;
+                }
+                try {
+                    if (!host.probe(docker)) continue;
+                } catch (IOException e) {
+                    host.failed();
+                    LOGGER.log(Level.FINE, "Failed to probe docker host " + docker.daemonKey(), e);
+                    continue;
+                }
+                double load = host.load() + PULL_WEIGHT * SingleFlight.count(docker.daemonKey() + "|pull|");
+                try {
+                    for (String image : images) {
+                        if (!image.contains("$") && docker.hasImage(image)) {
+                            load -= LOCALITY_BONUS;
+                            break;
+                        }
+                    }
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Failed to check images on docker host " + docker.daemonKey(), e);
+                }
+                LOGGER.log(Level.FINE, "Docker host {0} load is {1}", new Object[] {docker.daemonKey(), load});
+                if (load < best) {
+                    best = load;
+                    selected = docker;
+                }
+            }
+            if (selected == null) {
+                // no host is known to be healthy, let the build try the primary one and report why it fails
+                selected = candidates.get(0);
+                listener.getLogger().println("No Docker host is available, using " + describe(selected));
+            } else {
+                listener.getLogger().println("Running build on Docker host " + describe(selected));
+            }
+
+            Host host = host(selected);
+            host.reserve(memory);
+            PLACED.put(build.getExternalizableId(), new Placement(host, memory));
+            done = true;
+            return selected;
+        } finally {
+            // release credentials of the hosts we don't use, or of all hosts if selection was interrupted
+            for (Docker docker : candidates) {
+                if (done && docker == selected) continue;
+                try {
+                    docker.close();
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Failed to release Docker credentials", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Memory a build container reserves on its host.
+     * @param memory docker CLI memory limit, like <code>512m</code>
+     * @return limit in bytes, 0 if not set or invalid (docker will then report it as build starts container)
+     */
+    static long reservation(String memory) {
+        if (memory == null || memory.trim().length() == 0) return 0;
+        try {
+            return DockerEngineApi.parseMemory(memory);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static String describe(Docker docker) {
+        String uri = docker.getDockerHost().getUri();
+        return uri != null ? uri : "(default)";
+    }
+
+    private static Host host(Docker docker) {
+        String key = docker.daemonKey();
+        Host host = HOSTS.get(key);
+        if (host == null) {
+            HOSTS.putIfAbsent(key, new Host());
+            host = HOSTS.get(key);
+        }
+        return host;
+    }
+
+    private static final class Placement {
+        private final Host host;
+        private final long memory;
+
+        Placement(Host host, long memory) {
+            this.host = host;
+            this.memory = memory;
+        }
+    }
+
+    private static final class Host {
+        private long probed;
+        private int containers;
+        private int cpus = 1;
+        private long totalMemory;
+        /** builds placed on this host since it was probed, which containers might not be running yet */
+        private int placedSinceProbe;
+        private long reservedMemory;
+        private int failures;
+        private long unhealthyUntil;
+
+        synchronized boolean isHealthy() {
+            return System.currentTimeMillis() >= unhealthyUntil;
+        }
+
+        synchronized void failed() {
+            failures++;
+            long backoff = Math.min(MAX_BACKOFF, MIN_BACKOFF << Math.min(failures - 1, 10));
+            unhealthyUntil = System.currentTimeMillis() + backoff;
+        }
+
+        /**
+         * Refresh host load, unless recently done.
+         * @return host is healthy
+         */
+        boolean probe(Docker docker) throws IOException, InterruptedException {
+            synchronized (this) {
+                if (System.currentTimeMillis() - probed < PROBE_TTL) return true;
+            }
+            String info = docker.info(FORMAT, PROBE_TIMEOUT);
+            String[] fields = info != null ? info.split("\\|") : new String[0];
+            if (fields.length < 3) {
+                failed();
+                return false;
+            }
+            synchronized (this) {
+                try {
+                    containers = Integer.parseInt(fields[0].trim());
+                    cpus = Math.max(1, Integer.parseInt(fields[1].trim()));
+                    totalMemory = Long.parseLong(fields[2].trim());
+                } catch (NumberFormatException e) {
+                    LOGGER.log(Level.FINE, "Unexpected docker info: {0}", info);
+                }
+                probed = System.currentTimeMillis();
+                placedSinceProbe = 0;
+                failures = 0;
+                return true;
+            }
+        }
+
+        synchronized double load() {
+            double cpu = (double) (containers + placedSinceProbe) / cpus;
+            double memory = totalMemory > 0 ? (double) reservedMemory / totalMemory : 0;
+            return cpu + memory;
+        }
+
+        synchronized void reserve(long memory) {
+            placedSinceProbe++;
+            reservedMemory += memory;
+        }
+
+        synchronized void release(long memory) {
+            reservedMemory -= memory;
+        }
+    }
+
+    /**
+     * Release reservation once build has completed, whatever stage it reached.
+     */
+    @Extension
+    public static class Releaser extends RunListener<AbstractBuild<?, ?>> {
+
+        @Override
+        public void onCompleted(AbstractBuild<?, ?> build, TaskListener listener) {
+            // don't rely on build action, which isn't set if build failed right after host selection
+            Placement placement = PLACED.remove(build.getExternalizableId());
+            if (placement != null) placement.host.release(placement.memory);
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(DockerHostBalancer.class.getName());
+}
@@ -0,0 +1,87 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Rules from a <code>.dockerignore</code> file, to exclude files from build context the same way docker CLI does.
+ */
+class DockerIgnore {
+
+    static final DockerIgnore NONE = new DockerIgnore(Collections.<Rule>emptyList());
+
+    private final List<Rule> rules;
+    private final boolean exceptions;
+
+    private DockerIgnore(List<Rule> rules) {
+        this.rules = rules;
+        boolean exceptions = false;
+        for (Rule rule : rules) {
+            exceptions |= rule.exception;
+        }
+        this.exceptions = exceptions;
+    }
+
+    static DockerIgnore load(File context) throws IOException {
+        File file = new File(context, ".dockerignore");
+        if (!file.isFile()) return NONE;
+        return parse(FileUtils.readFileToString(file, "UTF-8"));
+    }
+
+    static DockerIgnore parse(String content) {
+        List<Rule> rules = new ArrayList<Rule>();
+        for (String line : content.split("\r?\n")) {
+            String pattern = line.trim();
+            if (pattern.length() == 0 || pattern.startsWith("#")) continue;
+            boolean exception = pattern.startsWith("!");
+            if (exception) pattern = pattern.substring(1).trim();
+            pattern = BuildContext.normalize(pattern);
+            if (pattern.length() == 0) continue;
+            rules.add(new Rule(BuildContext.glob(pattern), exception));
+        }
+        return new DockerIgnore(rules);
+    }
+
+    /**
+     * Tell if file (path relative to context root) has to be excluded from build context. As for docker, last
+     * matching rule wins, and a rule matching a directory applies to all of its content.
+     */
+    boolean isExcluded(String path) {
+        boolean excluded = false;
+        for (Rule rule : rules) {
+            if (rule.matches(path)) excluded = !rule.exception;
+        }
+        return excluded;
+    }
+
+    /**
+     * Tell if we can skip a directory without looking at its content, as it's excluded and no exception rule could
+     * re-include some of its files.
+     */
+    boolean isPruned(String directory) {
+        return !exceptions && isExcluded(directory);
+    }
+
+    private static final class Rule {
+        private final Pattern pattern;
+        private final boolean exception;
+
+        Rule(Pattern pattern, boolean exception) {
+            this.pattern = pattern;
+            this.exception = exception;
+        }
+
+        boolean matches(String path) {
+            for (String p = path; p != null; p = BuildContext.parent(p)) {
+                if (pattern.matcher(p).matches()) return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * Index of images built from Dockerfile, by build context digest, stored on each node. This let us reuse an image
+ * when neither Dockerfile nor the files it relies on did change since last build.
+ */
+class DockerImageIndex {
+
+    private static final String INDEX = "docker-custom-build-environment/images.properties";
+
+    /**
+     * @return ID of the image previously built for this context digest on this docker daemon, if any.
+     */
+    static String lookup(FilePath root, String daemon, String digest) throws IOException, InterruptedException {
+        return root.child(INDEX).act(new Update(daemon + "@" + digest, null, false));
+    }
+
+    static void record(FilePath root, String daemon, String digest, String imageId) throws IOException, InterruptedException {
+        root.child(INDEX).act(new Update(daemon + "@" + digest, imageId, true));
+    }
+
+    static void forget(FilePath root, String daemon, String digest) throws IOException, InterruptedException {
+        root.child(INDEX).act(new Update(daemon + "@" + digest, null, true));
+    }
+
+    /**
+     * Read (and optionally update) index entry. All builds on a node share the same file, so access is serialized
+     * within the node JVM.
+     */
+    private static final class Update extends MasterToSlaveFileCallable<String> {
+        private static final Object LOCK = new Object();
+
+        private final String key;
+        private final String value;
+        private final boolean write;
+
+        Update(String key, String value, boolean write) {
+            this.key = key;
+            this.value = value;
+            this.write = write;
+        }
+
+        @Override
+        public String invoke(File index, VirtualChannel channel) throws IOException, InterruptedException {
+            synchronized (LOCK) {
+                Properties properties = new Properties();
+                if (index.exists()) {
+                    InputStream in = new FileInputStream(index);
+                    try {
+                        properties.load(in);
+                    } finally {
+                        in.close();
+                    }
+                }
+                String previous = properties.getProperty(key);
+                if (!write) return previous;
+
+                if (value != null) {
+                    properties.setProperty(key, value);
+                } else {
+                    properties.remove(key);
+                }
+                index.getParentFile().mkdirs();
+                File tmp = new File(index.getPath() + ".tmp");
+                OutputStream out = new FileOutputStream(tmp);
+                try {
+                    properties.store(out, "Docker images built from Dockerfile, by build context digest");
+                } finally {
+                    out.close();
+                }
+                if (!tmp.renameTo(index)) {
+                    throw new IOException("Failed to update " + index);
+                }
+                return previous;
+            }
+        }
+    }
+}
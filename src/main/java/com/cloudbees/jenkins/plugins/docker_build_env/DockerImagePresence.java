@@ -0,0 +1,276 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import jenkins.security.MasterToSlaveCallable;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory index of the images available on a docker daemon, so we can check an image is present without running
+ * <code>docker inspect</code>. Index is seeded from the image list, then kept up to date by following daemon image
+ * events (pull, tag, untag, delete, ...).
+ * <p>
+ * There's a single index per daemon endpoint within the node JVM, shared by all builds running on this node. Until
+ * the index is in sync with daemon lookups return <code>null</code>, and caller has to ask daemon. Index is dropped
+ * once no build has been using it for {@link #IDLE}, so we don't keep following events from a daemon nobody uses.
+ */
+class DockerImagePresence implements Runnable {
+
+    private static final long RETRY_DELAY = TimeUnit.SECONDS.toMillis(Integer.getInteger(DockerImagePresence.class.getName()+".retryDelay", 5));
+
+    private static final long IDLE = TimeUnit.MINUTES.toMillis(Integer.getInteger(DockerImagePresence.class.getName()+".idle", 10));
+
+    private static final Pattern IMAGE_ID = Pattern.compile("(sha256:)?[0-9a-f]{12,64}");
+
+    /** native socket support can't be loaded on this node, so indexes can't follow daemon events */
+    private static volatile boolean unsupported;
+
+    private static final ConcurrentMap<String, DockerImagePresence> INDEXES = new ConcurrentHashMap<String, DockerImagePresence>();
+
+    /** follows daemon events for each index in use, on node JVM so can't rely on Jenkins timer */
+    private static final ExecutorService FOLLOWERS = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Docker image index");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final String endpoint;
+
+    /** image ID for each reference (<code>repository:tag</code> or <code>repository@digest</code>) */
+    private final Map<String, String> references = new HashMap<String, String>();
+
+    /** references for each image ID */
+    private final Map<String, Set<String>> images = new HashMap<String, Set<String>>();
+
+    private volatile boolean ready;
+
+    private volatile long lastUsed = System.currentTimeMillis();
+
+    DockerImagePresence(String endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    static DockerImagePresence of(String endpoint) {
+        DockerImagePresence index = INDEXES.get(endpoint);
+        if (index == null) {
+            index = new DockerImagePresence(endpoint);
+            DockerImagePresence existing = INDEXES.putIfAbsent(endpoint, index);
+            if (existing != null) return existing;
+            FOLLOWERS.submit(index);
+        }
+        return index;
+    }
+
+    /**
+     * @return image presence, or <code>null</code> if index isn't in sync with daemon
+     */
+    Boolean contains(String image) {
+        lastUsed = System.currentTimeMillis();
+        if (!ready) return null;
+        synchronized (this) {
+            if (IMAGE_ID.matcher(image).matches()) {
+                String id = image.startsWith("sha256:") ? image : "sha256:" + image;
+                for (String known : images.keySet()) {
+                    if (known.startsWith(id)) return true;
+                }
+                return false;
+            }
+            return references.containsKey(normalize(image));
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (System.currentTimeMillis() - lastUsed < IDLE) {
+                long start = System.currentTimeMillis();
+                try {
+                    follow();
+                } catch (Exception e) {
+                    LOGGER.log(Level.FINE, "Lost image events stream from " + endpoint, e);
+                }
+                synchronized (this) {
+                    ready = false;
+                    references.clear();
+                    images.clear();
+                }
+                // daemon is unreachable, or its clock is ahead of ours so events stream ended right away
+                if (System.currentTimeMillis() - start < RETRY_DELAY) {
+                    Thread.sleep(RETRY_DELAY);
+                }
+            }
+        } catch (InterruptedException e) {
+            // shutting down
+        } catch (LinkageError e) {
+            // jnr native code isn't available for this platform, this won't get any better
+            LOGGER.log(Level.WARNING, "Can't follow image events from " + endpoint + ", image presence is checked on daemon", e);
+            unsupported = true;
+        } finally {
+            INDEXES.remove(endpoint, this);
+        }
+    }
+
+    private void follow() throws IOException {
+        // subscribe before we seed index, so we don't miss changes happening meanwhile. Stream ends after IDLE, so we
+        // can check index is still used
+        long until = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() + IDLE);
+        DockerEngineClient.Response events = DockerEngineClient.of(endpoint).execute("GET",
+                DockerEngineApi.API_VERSION + "/events?until=" + until
+                        + "&filters=" + DockerEngineApi.encode("{\"type\":[\"image\"]}"));
+        try {
+            if (!events.isSuccessful()) {
+                throw new IOException("Failed to subscribe to image events: " + events.status);
+            }
+            seed();
+
+            String line;
+            while ((line = events.readLine()) != null) {
+                if (line.length() == 0) continue;
+                JSONObject event = JSONObject.fromObject(line);
+                JSONObject actor = event.optJSONObject("Actor");
+                String id = actor != null && actor.has("ID") ? actor.getString("ID") : event.optString("id", null);
+                if (id != null && id.length() > 0) {
+                    refresh(id);
+                }
+            }
+        } finally {
+            events.close();
+        }
+    }
+
+    private void seed() throws IOException {
+        DockerEngineClient.Response response = DockerEngineClient.of(endpoint).execute("GET", DockerEngineApi.API_VERSION + "/images/json");
+        if (!response.isSuccessful()) {
+            response.close();
+            throw new IOException("Failed to list images: " + response.status);
+        }
+        seed(JSONArray.fromObject(response.asString()));
+    }
+
+    /**
+     * @param list images, as listed by <code>GET /images/json</code>
+     */
+    synchronized void seed(JSONArray list) {
+        for (int i = 0; i < list.size(); i++) {
+            JSONObject image = list.getJSONObject(i);
+            update(image.getString("Id"), image);
+        }
+        ready = true;
+    }
+
+    /**
+     * Reload image details after an event, so we don't have to interpret every event type.
+     * @param image image ID or reference the event applies to
+     */
+    private void refresh(String image) throws IOException {
+        DockerEngineClient.Response response = DockerEngineClient.of(endpoint)
+                .execute("GET", DockerEngineApi.API_VERSION + "/images/" + image + "/json");
+        if (response.status == 404) {
+            response.close();
+            synchronized (this) {
+                if (images.containsKey(image)) {
+                    update(image, null);
+                } else {
+                    // reference which has been untagged, we don't know the image ID it was pointing to
+                    String reference = normalize(image);
+                    String id = references.remove(reference);
+                    if (id != null && images.containsKey(id)) images.get(id).remove(reference);
+                }
+            }
+            return;
+        }
+        if (!response.isSuccessful()) {
+            response.close();
+            throw new IOException("Failed to inspect image " + image + ": " + response.status);
+        }
+        JSONObject json = JSONObject.fromObject(response.asString());
+        synchronized (this) {
+            update(json.getString("Id"), json);
+        }
+    }
+
+    /**
+     * Replace references for image ID with the ones from <code>json</code>, <code>null</code> if image was deleted.
+     */
+    private void update(String id, JSONObject json) {
+        Set<String> previous = images.remove(id);
+        if (previous != null) {
+            for (String reference : previous) {
+                references.remove(reference);
+            }
+        }
+        if (json == null) return;
+
+        Set<String> current = new HashSet<String>();
+        for (String key : new String[] {"RepoTags", "RepoDigests"}) {
+            JSONArray refs = json.optJSONArray(key);
+            if (refs == null) continue;
+            for (int i = 0; i < refs.size(); i++) {
+                String reference = refs.getString(i);
+                if (reference.startsWith("<none>")) continue;
+                current.add(normalize(reference));
+            }
+        }
+        for (String reference : current) {
+            String other = references.put(reference, id);
+            if (other != null && !other.equals(id) && images.containsKey(other)) {
+                // tag moved to this image
+                images.get(other).remove(reference);
+            }
+        }
+        images.put(id, current);
+    }
+
+    /**
+     * Normalize image reference the way daemon reports them, so <code>docker.io/library/alpine</code> and
+     * <code>alpine:latest</code> match.
+     */
+    static String normalize(String image) {
+        String reference = image;
+        if (reference.startsWith("docker.io/")) reference = reference.substring("docker.io/".length());
+        else if (reference.startsWith("index.docker.io/")) reference = reference.substring("index.docker.io/".length());
+        if (reference.startsWith("library/")) reference = reference.substring("library/".length());
+        if (reference.indexOf('@') < 0 && reference.lastIndexOf(':') <= reference.lastIndexOf('/')) {
+            reference += ":latest";
+        }
+        return reference;
+    }
+
+    /**
+     * Check image presence from node hosting docker client.
+     */
+    static final class Contains extends MasterToSlaveCallable<Boolean, IOException> {
+        private final String endpoint;
+        private final String image;
+
+        Contains(String endpoint, String image) {
+            this.endpoint = endpoint;
+            this.image = image;
+        }
+
+        @Override
+        public Boolean call() throws IOException {
+            if (unsupported) return null;
+            return of(endpoint).contains(image);
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(DockerImagePresence.class.getName());
+}
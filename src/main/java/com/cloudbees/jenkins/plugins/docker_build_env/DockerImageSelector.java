@@ -17,5 +17,21 @@ public abstract class DockerImageSelector extends AbstractDescribableImpl<Docker
 
     public abstract String prepareDockerImage(Docker docker, AbstractBuild build, TaskListener listener, boolean forcePull, boolean noCache) throws IOException, InterruptedException;
 
+    /**
+     * Prepare Docker image while SCM checkout is running, if image can be determined without workspace content.
+     * @return prepared image, or <code>null</code> if image can only be prepared after checkout
+     */
+    public String prepareDockerImageBeforeCheckout(Docker docker, AbstractBuild build, TaskListener listener, boolean forcePull, boolean noCache) throws IOException, InterruptedException {
+        return null;
+    }
+
+    /**
+     * @return registry this selector pulls from or pushes to, which docker registry credentials authenticate against.
+     * <code>null</code> for Docker Hub.
+     */
+    public String getRegistryUrl() {
+        return null;
+    }
+
     public abstract Collection<String> getDockerImagesUsedByJob(Job<?, ?> job);
 }
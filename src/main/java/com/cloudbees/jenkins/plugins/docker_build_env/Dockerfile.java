@@ -0,0 +1,279 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Parsed Dockerfile, as a list of instructions. We only need to understand the instructions which impact the way we
+ * prepare build image (<code>FROM</code>, <code>COPY</code>, <code>ADD</code>), so this parser does not validate
+ * syntax beyond what's required to extract them.
+ */
+class Dockerfile {
+
+    private static final Pattern ESCAPE_DIRECTIVE = Pattern.compile("#\\s*escape\\s*=\\s*(\\S)\\s*", Pattern.CASE_INSENSITIVE);
+
+    /** <code>$NAME</code>, <code>${NAME}</code>, <code>${NAME:-default}</code> or <code>${NAME:+alternate}</code> */
+    private static final Pattern VARIABLE = Pattern.compile("\\$(?:\\{(\\w+)(?::([-+])([^}]*))?\\}|(\\w+))");
+
+    private final List<Instruction> instructions;
+
+    private Dockerfile(List<Instruction> instructions) {
+        this.instructions = instructions;
+    }
+
+    List<Instruction> getInstructions() {
+        return Collections.unmodifiableList(instructions);
+    }
+
+    static Dockerfile parse(String content) throws IOException {
+        BufferedReader reader = new BufferedReader(new StringReader(content));
+        List<Instruction> instructions = new ArrayList<Instruction>();
+        char escape = '\\';
+        boolean directives = true;
+        StringBuilder current = null;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String trimmed = line.trim();
+            if (directives) {
+                // parser directives are only allowed on top of Dockerfile
+                Matcher m = ESCAPE_DIRECTIVE.matcher(trimmed);
+                directives = m.matches();
+                if (directives) {
+                    escape = m.group(1).charAt(0);
+                    continue;
+                }
+            }
+            if (trimmed.length() == 0 || trimmed.startsWith("#")) continue;
+
+            boolean continued = trimmed.length() > 0 && trimmed.charAt(trimmed.length() - 1) == escape;
+            String part = continued ? trimmed.substring(0, trimmed.length() - 1) : trimmed;
+            if (current == null) {
+                current = new StringBuilder(part);
+            } else {
+                current.append(' ').append(part);
+            }
+            if (!continued) {
+                Instruction instruction = Instruction.parse(current.toString().trim());
+                if (instruction != null) instructions.add(instruction);
+                current = null;
+            }
+        }
+        if (current != null) {
+            Instruction instruction = Instruction.parse(current.toString().trim());
+            if (instruction != null) instructions.add(instruction);
+        }
+        return new Dockerfile(instructions);
+    }
+
+    /**
+     * Paths from build context this Dockerfile do use through <code>COPY</code> and <code>ADD</code> instructions,
+     * as they are declared (may include wildcards).
+     *
+     * @return source paths, or <code>null</code> if they can't be determined statically, for sample as they rely on
+     * variables substitution.
+     */
+    List<String> getContextSources() {
+        List<String> sources = new ArrayList<String>();
+        for (Instruction instruction : instructions) {
+            if (instruction.is("RUN")) {
+                // BuildKit bind mounts from build context
+                for (String mount : instruction.getFlags("mount")) {
+                    String source = bindMountSource(mount);
+                    if (source == null) continue;
+                    if (source.contains("$")) return null;
+                    sources.add(source);
+                }
+                continue;
+            }
+            if (!instruction.is("COPY") && !instruction.is("ADD")) continue;
+            if (instruction.getFlag("from") != null) continue; // copy from another stage or image
+            List<String> args = instruction.getArguments();
+            for (String source : args.subList(0, Math.max(0, args.size() - 1))) {
+                if (source.contains("://")) continue; // remote URL
+                if (source.contains("$")) return null;
+                sources.add(source);
+            }
+        }
+        return sources;
+    }
+
+    /**
+     * Images this Dockerfile is built from, as referenced by <code>FROM</code> and <code>COPY --from</code>
+     * instructions, excluding build stages and <code>scratch</code>. Variables are substituted with defaults of
+     * <code>ARG</code> instructions declared before first <code>FROM</code>, as we don't pass build arguments.
+     *
+     * @return image names, skipping those relying on a variable without a value
+     */
+    List<String> getBaseImages() {
+        Map<String, String> args = new HashMap<String, String>();
+        Set<String> stages = new HashSet<String>();
+        Set<String> images = new LinkedHashSet<String>();
+        boolean global = true;
+        for (Instruction instruction : instructions) {
+            if (global && instruction.is("ARG")) {
+                for (String arg : instruction.getArguments()) {
+                    String[] kv = arg.split("=", 2);
+                    args.put(kv[0], kv.length > 1 ? unquote(kv[1]) : null);
+                }
+            } else if (instruction.is("FROM")) {
+                global = false;
+                List<String> arguments = instruction.getArguments();
+                if (arguments.isEmpty()) continue;
+                String image = substitute(arguments.get(0), args);
+                if (image != null && !stages.contains(image.toLowerCase()) && !image.equalsIgnoreCase("scratch")) {
+                    images.add(image);
+                }
+                if (arguments.size() > 2 && arguments.get(1).equalsIgnoreCase("AS")) {
+                    stages.add(arguments.get(2).toLowerCase());
+                }
+            } else if (instruction.is("COPY")) {
+                String from = instruction.getFlag("from");
+                // stage ARGs are out of scope here, so skip image names relying on variables
+                if (from == null || from.length() == 0 || from.contains("$") || from.matches("\\d+")) continue;
+                if (!stages.contains(from.toLowerCase())) images.add(from);
+            }
+        }
+        return new ArrayList<String>(images);
+    }
+
+    /**
+     * @return value with variables substituted, <code>null</code> if it relies on a variable without a value
+     */
+    private static String substitute(String value, Map<String, String> args) {
+        Matcher m = VARIABLE.matcher(value);
+        StringBuffer sb = new StringBuffer();
+        while (m.find()) {
+            String name = m.group(1) != null ? m.group(1) : m.group(4);
+            String arg = args.get(name);
+            boolean set = arg != null && arg.length() > 0;
+            String replacement;
+            if ("-".equals(m.group(2))) {
+                replacement = set ? arg : m.group(3);
+            } else if ("+".equals(m.group(2))) {
+                replacement = set ? m.group(3) : "";
+            } else if (set) {
+                replacement = arg;
+            } else {
+                return null;
+            }
+            m.appendReplacement(sb, Matcher.quoteReplacement(replacement));
+        }
+        m.appendTail(sb);
+        return sb.length() > 0 ? sb.toString() : null;
+    }
+
+    private static String unquote(String value) {
+        if (value.length() >= 2 && (value.startsWith("\"") && value.endsWith("\"") || value.startsWith("'") && value.endsWith("'"))) {
+            return value.substring(1, value.length() - 1);
+        }
+        return value;
+    }
+
+    /**
+     * @return context path a <code>RUN --mount</code> option binds, <code>null</code> if it doesn't rely on context
+     */
+    private static String bindMountSource(String mount) {
+        String type = "bind";
+        String source = ".";
+        for (String option : mount.split(",")) {
+            String[] kv = option.split("=", 2);
+            String key = kv[0].trim();
+            String value = kv.length > 1 ? kv[1].trim() : "";
+            if (key.equals("type")) type = value;
+            else if (key.equals("source") || key.equals("src")) source = value;
+            else if (key.equals("from")) return null; // mount from another stage or image
+        }
+        return type.equals("bind") ? source : null;
+    }
+
+    static class Instruction {
+        private final String keyword;
+        private final List<String> flags;
+        private final List<String> arguments;
+
+        Instruction(String keyword, List<String> flags, List<String> arguments) {
+            this.keyword = keyword;
+            this.flags = flags;
+            this.arguments = arguments;
+        }
+
+        static Instruction parse(String line) {
+            if (line.length() == 0) return null;
+            String[] split = line.split("\\s+", 2);
+            String keyword = split[0].toUpperCase();
+            String rest = split.length > 1 ? split[1].trim() : "";
+
+            List<String> flags = new ArrayList<String>();
+            while (rest.startsWith("--")) {
+                String[] flag = rest.split("\\s+", 2);
+                flags.add(flag[0].substring(2));
+                rest = flag.length > 1 ? flag[1].trim() : "";
+            }
+
+            List<String> arguments = null;
+            if (rest.startsWith("[")) {
+                // exec (JSON) form
+                try {
+                    JSONArray json = JSONArray.fromObject(rest);
+                    arguments = new ArrayList<String>();
+                    for (Object o : json) arguments.add(String.valueOf(o));
+                } catch (JSONException e) {
+                    // not valid JSON, docker then considers this as shell form
+                }
+            }
+            if (arguments == null) {
+                arguments = rest.length() > 0 ? Arrays.asList(rest.split("\\s+")) : Collections.<String>emptyList();
+            }
+            return new Instruction(keyword, flags, arguments);
+        }
+
+        boolean is(String keyword) {
+            return this.keyword.equals(keyword);
+        }
+
+        String getKeyword() {
+            return keyword;
+        }
+
+        /**
+         * All values for a repeatable flag, like <code>RUN --mount</code>.
+         */
+        List<String> getFlags(String name) {
+            List<String> values = new ArrayList<String>();
+            for (String flag : flags) {
+                if (flag.startsWith(name + "=")) values.add(flag.substring(name.length() + 1));
+            }
+            return values;
+        }
+
+        /**
+         * @return value for a <code>--name=value</code> flag, or <code>null</code> if not set.
+         */
+        String getFlag(String name) {
+            for (String flag : flags) {
+                if (flag.startsWith(name + "=")) return flag.substring(name.length() + 1);
+                if (flag.equals(name)) return "";
+            }
+            return null;
+        }
+
+        List<String> getArguments() {
+            return arguments;
+        }
+    }
+}
@@ -1,17 +1,27 @@
 package com.cloudbees.jenkins.plugins.docker_build_env;
 
+import hudson.EnvVars;
 import hudson.Extension;
 import hudson.FilePath;
+import hudson.Util;
 import hudson.model.AbstractBuild;
+import hudson.model.Computer;
 import hudson.model.Descriptor;
 import hudson.model.Job;
+import hudson.model.Run;
 import hudson.model.TaskListener;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
-import java.io.File;
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import static org.apache.commons.lang.StringUtils.isEmpty;
 
@@ -24,6 +34,27 @@ public class DockerfileImageSelector extends DockerImageSelector {
 
     private String dockerfile;
 
+    private boolean fullContext;
+
+    private boolean buildKit;
+
+    /** buildx builder instance, default builder if not set */
+    private String builder;
+
+    /** <code>--cache-from</code> sources, one per line */
+    private String cacheFrom;
+
+    private String cacheTo;
+
+    /** <code>--secret</code> specifications, one per line */
+    private String secrets;
+
+    /** repository to share built images with other nodes, tagged by build context digest */
+    private String registryRepository;
+
+    /** base images of the Dockerfile last built for this job */
+    private transient volatile BaseImages baseImages;
+
     @DataBoundConstructor
     public DockerfileImageSelector(String contextPath, String dockerfile) {
         this.contextPath = contextPath;
@@ -31,25 +62,219 @@ public class DockerfileImageSelector extends DockerImageSelector {
     }
 
     @Override
-    public String prepareDockerImage(Docker docker, AbstractBuild build, TaskListener listener, boolean forcePull, boolean noCache) throws IOException, InterruptedException {
+    public String prepareDockerImage(final Docker docker, AbstractBuild build, final TaskListener listener, boolean forcePull, boolean noCache) throws IOException, InterruptedException {
 
-        String expandedContextPath = build.getEnvironment(listener).expand(contextPath);
-        FilePath filePath = build.getWorkspace().child(expandedContextPath);
+        EnvVars env = build.getEnvironment(listener);
+        final String expandedContextPath = env.expand(contextPath);
+        final List<String> buildKitArgs = buildKitArgs(env);
+        final FilePath filePath = build.getWorkspace().child(expandedContextPath);
 
         FilePath dockerFile = filePath.child(getDockerfile());
         if (!dockerFile.exists()) {
             listener.getLogger().println("Your project is missing a Dockerfile");
             throw new InterruptedException("Your project is missing a Dockerfile");
         }
+        List<String> images = parseBaseImages(dockerFile);
+
+        if (forcePull || noCache) {
+            listener.getLogger().println("Build Docker image from " + expandedContextPath + "/"+getDockerfile()+" ...");
+            return docker.buildImage(filePath, getDockerfile(), fullContext, forcePull, noCache, buildKitArgs);
+        }
+
+        // Skip docker build if we already built an image from the exact same Dockerfile, build context and base images.
+        // Concurrent builds with the same build context on this docker daemon share a single docker build.
+        String contextDigest = filePath.act(new BuildContext.Digest(getDockerfile(), fullContext));
+        final String digest = imageKey(docker, contextDigest, images, buildKitArgs);
+        return SingleFlight.run(docker.daemonKey() + "|build|" + digest, listener, "build of Docker image from " + expandedContextPath + "/" + getDockerfile(),
+                new SingleFlight.Operation<String>() {
+                    @Override
+                    public String run() throws IOException, InterruptedException {
+                        return buildUnlessIndexed(docker, filePath, digest, listener, expandedContextPath, buildKitArgs);
+                    }
+                });
+    }
+
+    /**
+     * Key for the image built from a build context: context digest, base images as resolved by docker daemon and
+     * effective BuildKit options, so an image re-tagged upstream or a changed option triggers a new build.
+     */
+    private String imageKey(Docker docker, String contextDigest, List<String> images, List<String> buildKitArgs) throws IOException, InterruptedException {
+        StringBuilder key = new StringBuilder(contextDigest).append('\n');
+        for (String image : images) {
+            // a dedicated buildx builder resolves base images on its own, not from docker daemon
+            String id = buildKit && builder != null ? null : docker.getImageId(image);
+            key.append("from ").append(image).append('=').append(id != null ? id : "").append('\n');
+        }
+        if (buildKitArgs != null) {
+            for (String arg : buildKitArgs) {
+                key.append("arg ").append(arg).append('\n');
+            }
+        }
+        return Util.toHexString(sha256(key.toString()));
+    }
+
+    private static byte[] sha256(String value) throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(value.getBytes("UTF-8"));
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private String buildUnlessIndexed(Docker docker, FilePath filePath, String digest, TaskListener listener, String expandedContextPath, List<String> buildKitArgs) throws IOException, InterruptedException {
+        FilePath root = Computer.currentComputer().getNode().getRootPath();
+        String imageId = DockerImageIndex.lookup(root, docker.daemonKey(), digest);
+        if (imageId != null) {
+            if (docker.hasImage(imageId)) {
+                listener.getLogger().println("Dockerfile and build context are unchanged, reusing image " + imageId);
+                return imageId;
+            }
+            DockerImageIndex.forget(root, docker.daemonKey(), digest);
+        }
+
+        // another node might already have built this image
+        String shared = registryRepository != null ? registryRepository + ":" + digest : null;
+        // check registry quietly first, as the image is missing until some node built it
+        String pinned = shared != null ? docker.resolveImage(shared) : null;
+        if (pinned != null && docker.pullImage(pinned)) {
+            imageId = docker.getImageId(pinned);
+            if (imageId != null) {
+                listener.getLogger().println("Dockerfile and build context are unchanged, reusing image " + pinned);
+                DockerImageIndex.record(root, docker.daemonKey(), digest, imageId);
+                return imageId;
+            }
+        }
 
         listener.getLogger().println("Build Docker image from " + expandedContextPath + "/"+getDockerfile()+" ...");
-        return docker.buildImage(filePath, dockerFile.getRemote(), forcePull, noCache);
+        imageId = docker.buildImage(filePath, getDockerfile(), fullContext, false, false, buildKitArgs);
+        DockerImageIndex.record(root, docker.daemonKey(), digest, imageId);
+
+        if (shared != null) {
+            listener.getLogger().println("Push image as " + shared + " to share it with other nodes");
+            if (!docker.pushImage(imageId, shared)) {
+                listener.getLogger().println("Failed to push image " + shared + ", other nodes will build it again");
+            }
+        }
+        return imageId;
+    }
+
+    /**
+     * @return <code>docker buildx build</code> options, <code>null</code> when not building with BuildKit
+     */
+    private List<String> buildKitArgs(EnvVars env) {
+        if (!buildKit) return null;
+        List<String> args = new ArrayList<String>();
+        if (Util.fixEmptyAndTrim(builder) != null) {
+            args.add("--builder");
+            args.add(env.expand(builder.trim()));
+        }
+        for (String source : lines(cacheFrom)) {
+            args.add("--cache-from");
+            args.add(env.expand(source));
+        }
+        if (Util.fixEmptyAndTrim(cacheTo) != null) {
+            args.add("--cache-to");
+            args.add(env.expand(cacheTo.trim()));
+        }
+        for (String secret : lines(secrets)) {
+            args.add("--secret");
+            args.add(env.expand(secret));
+        }
+        return args;
+    }
+
+    private static List<String> lines(String value) {
+        List<String> lines = new ArrayList<String>();
+        if (value == null) return lines;
+        for (String line : value.split("\\r?\\n")) {
+            if (line.trim().length() > 0) lines.add(line.trim());
+        }
+        return lines;
+    }
+
+    /**
+     * Registry hosting {@link #registryRepository}, following docker's rule to tell a registry host from a Docker Hub
+     * namespace.
+     */
+    @Override
+    public String getRegistryUrl() {
+        if (registryRepository == null) return null;
+        int slash = registryRepository.indexOf('/');
+        if (slash < 0) return null;
+        String host = registryRepository.substring(0, slash);
+        if (!host.contains(".") && !host.contains(":") && !host.equals("localhost")) return null;
+        return "https://" + host;
+    }
+
+    /**
+     * Pull base images the last build used while SCM checkout is running, as image can only be built once workspace
+     * is checked out.
+     */
+    @Override
+    public String prepareDockerImageBeforeCheckout(Docker docker, AbstractBuild build, TaskListener listener, boolean forcePull, boolean noCache) throws IOException, InterruptedException {
+        // a dedicated buildx builder doesn't use images from docker daemon
+        if (buildKit && builder != null) return null;
+        for (String image : getDockerImagesUsedByJob(build.getProject())) {
+            if (docker.hasImage(image)) continue;
+            listener.getLogger().println("Pull Docker base image " + image + " ...");
+            if (!docker.pullImage(image)) {
+                listener.getLogger().println("Failed to pull Docker base image " + image + ", docker build will retry");
+            }
+        }
+        return null;
     }
 
+    /**
+     * Base images of the Dockerfile last built for this job. After a restart, Dockerfile is read from last build
+     * workspace, if its node is online.
+     */
     @Override
     public Collection<String> getDockerImagesUsedByJob(Job<?, ?> job) {
-        // TODO get last build and parse Dockerfile "FROM"
-        return Collections.EMPTY_LIST;
+        BaseImages cached = baseImages;
+        if (cached != null) return cached.images;
+
+        Run<?, ?> last = job.getLastBuild();
+        if (!(last instanceof AbstractBuild)) return Collections.emptyList();
+        FilePath workspace = ((AbstractBuild) last).getWorkspace();
+        if (workspace == null) return Collections.emptyList();
+        // called while selecting a docker host for a build, which must not wait for another node
+        Computer computer = workspace.toComputer();
+        if (computer == null || computer.isOffline()) return Collections.emptyList();
+        try {
+            String expandedContextPath = last.getEnvironment(TaskListener.NULL).expand(contextPath);
+            FilePath dockerFile = workspace.child(expandedContextPath).child(getDockerfile());
+            if (!dockerFile.exists()) return Collections.emptyList();
+            return parseBaseImages(dockerFile);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to read Dockerfile for " + job.getFullName(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Parse base images from Dockerfile, unless it is unchanged since last parsed.
+     */
+    private List<String> parseBaseImages(FilePath dockerFile) throws IOException, InterruptedException {
+        String content = dockerFile.readToString();
+        String digest = Util.getDigestOf(content);
+        BaseImages cached = baseImages;
+        if (cached != null && cached.digest.equals(digest)) return cached.images;
+        List<String> images = Collections.unmodifiableList(Dockerfile.parse(content).getBaseImages());
+        baseImages = new BaseImages(digest, images);
+        return images;
+    }
+
+    private static final class BaseImages {
+        /** digest of Dockerfile content */
+        private final String digest;
+        private final List<String> images;
+
+        BaseImages(String digest, List<String> images) {
+            this.digest = digest;
+            this.images = images;
+        }
     }
 
     public String getContextPath() {
@@ -60,6 +285,69 @@ public class DockerfileImageSelector extends DockerImageSelector {
         return isEmpty(dockerfile) ? "Dockerfile" : dockerfile;
     }
 
+    public boolean isFullContext() {
+        return fullContext;
+    }
+
+    @DataBoundSetter
+    public void setFullContext(boolean fullContext) {
+        this.fullContext = fullContext;
+    }
+
+    public boolean isBuildKit() {
+        return buildKit;
+    }
+
+    @DataBoundSetter
+    public void setBuildKit(boolean buildKit) {
+        this.buildKit = buildKit;
+    }
+
+    public String getBuilder() {
+        return builder;
+    }
+
+    @DataBoundSetter
+    public void setBuilder(String builder) {
+        this.builder = Util.fixEmptyAndTrim(builder);
+    }
+
+    public String getCacheFrom() {
+        return cacheFrom;
+    }
+
+    @DataBoundSetter
+    public void setCacheFrom(String cacheFrom) {
+        this.cacheFrom = Util.fixEmptyAndTrim(cacheFrom);
+    }
+
+    public String getCacheTo() {
+        return cacheTo;
+    }
+
+    @DataBoundSetter
+    public void setCacheTo(String cacheTo) {
+        this.cacheTo = Util.fixEmptyAndTrim(cacheTo);
+    }
+
+    public String getSecrets() {
+        return secrets;
+    }
+
+    @DataBoundSetter
+    public void setSecrets(String secrets) {
+        this.secrets = Util.fixEmptyAndTrim(secrets);
+    }
+
+    public String getRegistryRepository() {
+        return registryRepository;
+    }
+
+    @DataBoundSetter
+    public void setRegistryRepository(String registryRepository) {
+        this.registryRepository = Util.fixEmptyAndTrim(registryRepository);
+    }
+
     private Object readResolve() {
         if (dockerfile == null) dockerfile="Dockerfile";
         return this;
@@ -73,4 +361,6 @@ public class DockerfileImageSelector extends DockerImageSelector {
             return "Build from Dockerfile";
         }
     }
+
+    private static final Logger LOGGER = Logger.getLogger(DockerfileImageSelector.class.getName());
 }
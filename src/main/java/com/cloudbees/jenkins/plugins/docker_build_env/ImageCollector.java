@@ -0,0 +1,275 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import org.apache.commons.io.FileUtils;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Remove images built by this plugin (as labelled by {@link Docker#buildImage}) once they're not needed anymore, so
+ * docker daemon storage doesn't grow with every Dockerfile change.
+ * <p>
+ * For each job only the images from the most recent builds are kept, then least recently used images are
+ * removed until images fit in a storage budget. Image size includes layers shared with other images, so this budget
+ * is an upper bound. An image used by a running build is never removed.
+ * <p>
+ * Collection runs periodically for each docker daemon builds have been running on, reusing the docker client of the
+ * last build, as daemon might only be reachable with this build's credentials. If this fails, for instance because the
+ * build's node is gone, collection on this daemon waits for a later build to provide a client.
+ */
+class ImageCollector {
+
+    /** images to keep for each job, by build number */
+    private static final int KEEP = Integer.getInteger(ImageCollector.class.getName()+".keep", 3);
+
+    /** storage budget for plugin built images on a docker daemon, in MB. 0 to disable LRU eviction */
+    private static final long BUDGET = Long.getLong(ImageCollector.class.getName()+".budget", 20480) * FileUtils.ONE_MB;
+
+    private static final long INTERVAL = TimeUnit.MINUTES.toMillis(Integer.getInteger(ImageCollector.class.getName()+".interval", 60));
+
+    /** images built or used more recently than this are never removed, as a build might be about to run them */
+    private static final long GRACE = TimeUnit.MINUTES.toMillis(30);
+
+    private static final String FORMAT = "{{.Id}}|{{index .Config.Labels \"jenkins-job\"}}|{{index .Config.Labels \"jenkins-project\"}}|{{index .Config.Labels \"jenkins-build-number\"}}|{{.Created}}|{{.Size}}|{{join .RepoTags \" \"}}";
+
+    private static final ConcurrentMap<String, Daemon> DAEMONS = new ConcurrentHashMap<String, Daemon>();
+
+    /**
+     * A build is about to run a container from this image.
+     */
+    static void acquire(Docker docker, String image) {
+        daemon(docker).acquire(id(image));
+    }
+
+    /**
+     * Build has completed. Its docker client will be used for next collection on this daemon.
+     */
+    static void release(Docker docker, String image) {
+        daemon(docker).release(id(image), docker);
+    }
+
+    private static Daemon daemon(Docker docker) {
+        String key = docker.daemonKey();
+        Daemon daemon = DAEMONS.get(key);
+        if (daemon == null) {
+            DAEMONS.putIfAbsent(key, new Daemon());
+            daemon = DAEMONS.get(key);
+        }
+        return daemon;
+    }
+
+    private static String id(String image) {
+        return image.startsWith("sha256:") ? image.substring(7) : image;
+    }
+
+    private static final class Daemon {
+        private final Map<String, AtomicInteger> inUse = new HashMap<String, AtomicInteger>();
+        private final Map<String, Long> lastUsed = new HashMap<String, Long>();
+        private volatile Docker docker;
+        private volatile long lastRun = System.currentTimeMillis();
+
+        synchronized void acquire(String image) {
+            AtomicInteger count = inUse.get(image);
+            if (count == null) inUse.put(image, count = new AtomicInteger());
+            count.incrementAndGet();
+            lastUsed.put(image, System.currentTimeMillis());
+        }
+
+        synchronized void release(String image, Docker docker) {
+            AtomicInteger count = inUse.get(image);
+            if (count != null && count.decrementAndGet() <= 0) inUse.remove(image);
+            lastUsed.put(image, System.currentTimeMillis());
+            if (this.docker == docker) return;
+            // collection runs long after build has completed
+            docker.retain();
+            Docker previous = this.docker;
+            this.docker = docker;
+            if (previous != null) {
+                try {
+                    previous.close();
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINE, "Failed to release Docker credentials", e);
+                }
+            }
+        }
+
+        /**
+         * @param id full image ID, as reported by <code>docker inspect</code>
+         */
+        synchronized boolean isInUse(String id) {
+            for (String image : inUse.keySet()) {
+                if (id(id).startsWith(image)) return true;
+            }
+            return false;
+        }
+
+        synchronized long lastUsed(String id, long created) {
+            long last = created;
+            for (Map.Entry<String, Long> entry : lastUsed.entrySet()) {
+                if (id(id).startsWith(entry.getKey())) last = Math.max(last, entry.getValue());
+            }
+            return last;
+        }
+
+        /**
+         * Docker client can't be used anymore, don't retry collection until a build provides a new one.
+         */
+        synchronized void forget(Docker docker) {
+            if (this.docker != docker) return;
+            this.docker = null;
+            try {
+                docker.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Failed to release Docker credentials", e);
+            }
+        }
+
+        void collect() throws IOException, InterruptedException {
+            lastRun = System.currentTimeMillis();
+            Docker docker = this.docker;
+            if (docker == null) return;
+
+            List<String> inspected;
+            try {
+                inspected = docker.inspectImages("jenkins-project", FORMAT);
+            } catch (IOException e) {
+                forget(docker);
+                throw e;
+            }
+
+            Map<String, List<Image>> byJob = new HashMap<String, List<Image>>();
+            for (String line : inspected) {
+                Image image = Image.parse(line, this);
+                if (image == null) continue;
+                List<Image> job = byJob.get(image.job);
+                if (job == null) byJob.put(image.job, job = new ArrayList<Image>());
+                job.add(image);
+            }
+
+            List<Image> kept = new ArrayList<Image>();
+            long total = 0;
+            for (List<Image> job : byJob.values()) {
+                Collections.sort(job, new Comparator<Image>() {
+                    @Override
+                    public int compare(Image a, Image b) {
+                        return b.buildNumber - a.buildNumber;
+                    }
+                });
+                for (int i = 0; i < job.size(); i++) {
+                    Image image = job.get(i);
+                    if (i < KEEP || !remove(docker, image)) {
+                        kept.add(image);
+                        total += image.size;
+                    }
+                }
+            }
+
+            if (BUDGET <= 0 || total <= BUDGET) return;
+            Collections.sort(kept, new Comparator<Image>() {
+                @Override
+                public int compare(Image a, Image b) {
+                    long diff = a.lastUsed - b.lastUsed;
+                    return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+                }
+            });
+            for (Image image : kept) {
+                if (total <= BUDGET) break;
+                if (remove(docker, image)) total -= image.size;
+            }
+        }
+
+        private boolean remove(Docker docker, Image image) throws IOException, InterruptedException {
+            if (isInUse(image.id)) return false;
+            if (System.currentTimeMillis() - image.lastUsed < GRACE) return false;
+            LOGGER.log(Level.FINE, "Removing image {0} built for {1} #{2}", new Object[] {image.id, image.job, image.buildNumber});
+            // removing all tags deletes the image, while removing by ID would fail for an image with many tags
+            return docker.removeImage(image.tags.isEmpty() ? Collections.singletonList(image.id) : image.tags);
+        }
+    }
+
+    private static final class Image {
+        private final String id;
+        private final String job;
+        private final int buildNumber;
+        private final long lastUsed;
+        private final long size;
+        private final List<String> tags;
+
+        Image(String id, String job, int buildNumber, long lastUsed, long size, List<String> tags) {
+            this.id = id;
+            this.job = job;
+            this.buildNumber = buildNumber;
+            this.lastUsed = lastUsed;
+            this.size = size;
+            this.tags = tags;
+        }
+
+        static Image parse(String line, Daemon daemon) {
+            String[] fields = line.split("\\|", 7);
+            if (fields.length < 6) return null;
+            try {
+                long created = DatatypeConverter.parseDateTime(fields[4]).getTimeInMillis();
+                List<String> tags = new ArrayList<String>();
+                if (fields.length > 6) {
+                    for (String tag : fields[6].split(" ")) {
+                        // untagged images report <none>:<none> with older daemons
+                        if (tag.length() > 0 && !tag.contains("<none>")) tags.add(tag);
+                    }
+                }
+                // images built by older versions are only labelled with project name
+                String job = fields[1].length() > 0 ? fields[1] : fields[2];
+                return new Image(fields[0], job, Integer.parseInt(fields[3]),
+                        daemon.lastUsed(fields[0], created), Long.parseLong(fields[5]), tags);
+            } catch (IllegalArgumentException e) {
+                // not built by this plugin, just using the same label
+                LOGGER.log(Level.FINE, "Ignoring image " + Arrays.toString(fields), e);
+                return null;
+            }
+        }
+    }
+
+    @Extension
+    public static class Collector extends AsyncPeriodicWork {
+
+        public Collector() {
+            super("Docker build environment image collection");
+        }
+
+        @Override
+        public long getRecurrencePeriod() {
+            return TimeUnit.MINUTES.toMillis(5);
+        }
+
+        @Override
+        protected void execute(TaskListener listener) throws IOException, InterruptedException {
+            long now = System.currentTimeMillis();
+            for (Map.Entry<String, Daemon> entry : DAEMONS.entrySet()) {
+                Daemon daemon = entry.getValue();
+                if (now - daemon.lastRun < INTERVAL) continue;
+                try {
+                    daemon.collect();
+                } catch (Exception e) {
+                    LOGGER.log(Level.WARNING, "Failed to collect docker images on " + entry.getKey(), e);
+                }
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ImageCollector.class.getName());
+}
@@ -0,0 +1,217 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import org.jenkinsci.plugins.docker.commons.credentials.KeyMaterial;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Credentials materialized on a node (TLS client certificates, docker CLI configuration after registry login),
+ * shared by builds using the same credentials on the node rather than written and deleted for every build.
+ * <p>
+ * Material is reference counted. It isn't handed to new builds once older than {@link #MAX_AGE}, and is deleted
+ * once unused for {@link #IDLE}, which leaves time for container removal to complete after the build.
+ */
+class KeyMaterialCache {
+
+    private static final long MAX_AGE = TimeUnit.MINUTES.toMillis(Integer.getInteger(KeyMaterialCache.class.getName()+".maxAge", 60));
+
+    private static final long IDLE = TimeUnit.MINUTES.toMillis(Integer.getInteger(KeyMaterialCache.class.getName()+".idle", 30));
+
+    private static final Map<String, Entry> ENTRIES = new HashMap<String, Entry>();
+
+    /** entries replaced by fresh material, to be closed once unused */
+    private static final List<Entry> RETIRED = new ArrayList<Entry>();
+
+    interface Materializer {
+        KeyMaterial materialize() throws IOException, InterruptedException;
+    }
+
+    /**
+     * @param key identifies node and credentials, including a fingerprint of credentials content so an updated
+     *            credential isn't served from cache. <code>null</code> to bypass cache.
+     */
+    static Lease acquire(final String key, TaskListener listener, final Materializer materializer) throws IOException, InterruptedException {
+        if (key == null) {
+            return new Lease(new Entry(materializer.materialize()));
+        }
+        while (true) {
+            synchronized (ENTRIES) {
+                Entry cached = ENTRIES.get(key);
+                if (cached != null && cached.isFresh()) return cached.lease();
+            }
+            // concurrent builds share a single materialization
+            Entry entry = SingleFlight.run("credentials|" + key, listener, "setup of Docker credentials",
+                    new SingleFlight.Operation<Entry>() {
+                        @Override
+                        public Entry run() throws IOException, InterruptedException {
+                            synchronized (ENTRIES) {
+                                Entry cached = ENTRIES.get(key);
+                                if (cached != null && cached.isFresh()) return cached;
+                            }
+                            Entry fresh = new Entry(materializer.materialize());
+                            synchronized (ENTRIES) {
+                                Entry previous = ENTRIES.put(key, fresh);
+                                if (previous != null) RETIRED.add(previous);
+                            }
+                            return fresh;
+                        }
+                    });
+            synchronized (ENTRIES) {
+                if (!entry.closed) return entry.lease();
+            }
+            // evicted meanwhile, which is unlikely but possible under heavy load
+        }
+    }
+
+    private static final class Entry {
+        private final KeyMaterial material;
+        private final long created = System.currentTimeMillis();
+        private long lastReleased = created;
+        private int refs;
+        private boolean closed;
+
+        Entry(KeyMaterial material) {
+            this.material = material;
+        }
+
+        boolean isFresh() {
+            return !closed && System.currentTimeMillis() - created < MAX_AGE;
+        }
+
+        Lease lease() {
+            refs++;
+            return new Lease(this);
+        }
+
+        boolean isUnused(long now) {
+            return refs == 0 && now - lastReleased >= IDLE;
+        }
+    }
+
+    /**
+     * Credentials material used by a build, to be closed once build has completed.
+     */
+    static final class Lease {
+        private final Entry entry;
+        private boolean released;
+
+        Lease(Entry entry) {
+            this.entry = entry;
+        }
+
+        EnvVars env() {
+            return entry.material.env();
+        }
+
+        /**
+         * Stop handing this material to new builds, as it turned out to be unusable, then release it.
+         */
+        void invalidate() throws IOException {
+            synchronized (ENTRIES) {
+                for (Iterator<Map.Entry<String, Entry>> it = ENTRIES.entrySet().iterator(); it.hasNext();) {
+                    if (it.next().getValue() == entry) {
+                        it.remove();
+                        RETIRED.add(entry);
+                    }
+                }
+            }
+            close();
+        }
+
+        void close() throws IOException {
+            synchronized (ENTRIES) {
+                if (released) return;
+                released = true;
+                if (entry.refs > 0) {
+                    entry.refs--;
+                    entry.lastReleased = System.currentTimeMillis();
+                    return;
+                }
+            }
+            // not cached
+            entry.material.close();
+        }
+    }
+
+    /**
+     * Delete material no build has been using for a while.
+     */
+    @Extension
+    public static class Evictor extends AsyncPeriodicWork {
+
+        public Evictor() {
+            super("Docker build environment credentials eviction");
+        }
+
+        @Override
+        public long getRecurrencePeriod() {
+            return TimeUnit.MINUTES.toMillis(1);
+        }
+
+        @Override
+        protected void execute(TaskListener listener) throws IOException, InterruptedException {
+            long now = System.currentTimeMillis();
+            List<Entry> unused = new ArrayList<Entry>();
+            synchronized (ENTRIES) {
+                for (Iterator<Entry> it = ENTRIES.values().iterator(); it.hasNext();) {
+                    Entry entry = it.next();
+                    if (entry.isUnused(now)) {
+                        it.remove();
+                        entry.closed = true;
+                        unused.add(entry);
+                    }
+                }
+                for (Iterator<Entry> it = RETIRED.iterator(); it.hasNext();) {
+                    Entry entry = it.next();
+                    if (entry.isUnused(now)) {
+                        it.remove();
+                        entry.closed = true;
+                        unused.add(entry);
+                    }
+                }
+            }
+            for (Entry entry : unused) {
+                try {
+                    entry.material.close();
+                } catch (Exception e) {
+                    // node might be offline, material then is gone with its temporary directory
+                    LOGGER.log(Level.FINE, "Failed to delete Docker credentials material", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Release build's credentials material once build has completed, whatever stage it reached.
+     */
+    @Extension
+    public static class Releaser extends RunListener<AbstractBuild<?, ?>> {
+
+        @Override
+        public void onCompleted(AbstractBuild<?, ?> build, TaskListener listener) {
+            BuiltInContainer container = build.getAction(BuiltInContainer.class);
+            if (container == null || container.getDocker() == null) return;
+            try {
+                container.getDocker().close();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to release Docker credentials", e);
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(KeyMaterialCache.class.getName());
+}
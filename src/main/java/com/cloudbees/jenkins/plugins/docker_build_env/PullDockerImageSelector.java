@@ -37,6 +37,13 @@ public class PullDockerImageSelector extends DockerImageSelector {
         return expandedImage;
     }
 
+    @Override
+    public String prepareDockerImageBeforeCheckout(Docker docker, AbstractBuild build, TaskListener listener, boolean forcePull, boolean noCache) throws IOException, InterruptedException {
+        // image name might rely on variables contributed by SCM checkout
+        if (image.contains("$")) return null;
+        return prepareDockerImage(docker, build, listener, forcePull, noCache);
+    }
+
     @Override
     public Collection<String> getDockerImagesUsedByJob(Job<?, ?> job) {
         return Collections.singleton(image);
@@ -0,0 +1,89 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import hudson.model.TaskListener;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Coordinate expensive docker operations (image pull, image build) across concurrent builds, so builds asking for
+ * the same operation on the same docker daemon join the one in progress and share its result, rather than competing
+ * for daemon and registry bandwidth.
+ */
+class SingleFlight {
+
+    private static final ConcurrentMap<String, Future<?>> IN_FLIGHT = new ConcurrentHashMap<String, Future<?>>();
+
+    interface Operation<V> {
+        V run() throws IOException, InterruptedException;
+    }
+
+    /**
+     * Run operation, or wait for the one already running with the same key.
+     * @param key identifies the operation, including the docker daemon it applies to
+     * @param description human readable description, to explain why the build is waiting
+     */
+    @SuppressWarnings("unchecked")
+    static <V> V run(String key, TaskListener listener, String description, final Operation<V> operation) throws IOException, InterruptedException {
+        while (true) {
+            FutureTask<V> task = new FutureTask<V>(new Callable<V>() {
+                @Override
+                public V call() throws Exception {
+                    return operation.run();
+                }
+            });
+            Future<?> running = IN_FLIGHT.putIfAbsent(key, task);
+            if (running == null) {
+                try {
+                    task.run();
+                } finally {
+                    IN_FLIGHT.remove(key, task);
+                }
+                return get(task);
+            }
+
+            listener.getLogger().println("Waiting for " + description + " already in progress for another build");
+            try {
+                return (V) running.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof InterruptedException) {
+                    // the build running this operation has been aborted, let's take over
+                    continue;
+                }
+                throw rethrow(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Number of operations in progress with a key starting with <code>prefix</code>.
+     */
+    static int count(String prefix) {
+        int count = 0;
+        for (String key : IN_FLIGHT.keySet()) {
+            if (key.startsWith(prefix)) count++;
+        }
+        return count;
+    }
+
+    private static <V> V get(Future<V> task) throws IOException, InterruptedException {
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            throw rethrow(e.getCause());
+        }
+    }
+
+    private static IOException rethrow(Throwable cause) throws InterruptedException {
+        if (cause instanceof InterruptedException) throw (InterruptedException) cause;
+        if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+        if (cause instanceof Error) throw (Error) cause;
+        if (cause instanceof IOException) return (IOException) cause;
+        return new IOException(cause);
+    }
+}
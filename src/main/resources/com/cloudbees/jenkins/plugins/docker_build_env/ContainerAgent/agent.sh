@@ -0,0 +1,39 @@
+#!/bin/sh
+# Resident agent running as the build container main process.
+# Jenkins writes "run <id>" or "kill <id>" requests on the control fifo, request <id> being a directory in spool
+# with a "run" script, which deletes itself once started. Agent starts it in background, and reports exit code in
+# "exit" once completed. Agent touches "alive" every second, so Jenkins can tell it is gone if container stopped.
+
+spool="$1"
+
+while :; do
+    echo > "$spool/alive"
+    sleep 1
+done &
+
+mkfifo "$spool/control.tmp" && mv "$spool/control.tmp" "$spool/control" || exit 1
+
+# open fifo read-write so we never get EOF when Jenkins closes it after a request
+exec 3<> "$spool/control"
+
+while read -r verb id <&3; do
+    case "$verb" in
+        run)
+            (
+                # stderr is relayed separately when Jenkins created an "err" file for it
+                if [ -f "$spool/$id/err" ]; then
+                    sh "$spool/$id/run" < /dev/null > "$spool/$id/out" 2> "$spool/$id/err" &
+                else
+                    sh "$spool/$id/run" < /dev/null > "$spool/$id/out" 2>&1 &
+                fi
+                echo $! > "$spool/$id/pid"
+                wait $!
+                echo $? > "$spool/$id/exit.tmp"
+                mv "$spool/$id/exit.tmp" "$spool/$id/exit"
+            ) &
+            ;;
+        kill)
+            [ -f "$spool/$id/pid" ] && kill -TERM "$(cat "$spool/$id/pid")" 2> /dev/null
+            ;;
+    esac
+done
@@ -0,0 +1,89 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class BuildContextTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void dockerignore_last_matching_rule_wins() {
+        DockerIgnore ignore = DockerIgnore.parse("# comment\n*.md\n!README.md\ntarget\n**/*.log\n");
+        assertTrue(ignore.isExcluded("CHANGES.md"));
+        assertFalse(ignore.isExcluded("README.md"));
+        assertFalse(ignore.isExcluded("docs/CHANGES.md"));
+        assertTrue(ignore.isExcluded("target/classes/Foo.class"));
+        assertTrue(ignore.isExcluded("a/b/c.log"));
+        assertTrue(ignore.isExcluded("c.log"));
+        assertFalse(ignore.isExcluded("src/main/Foo.java"));
+    }
+
+    @Test
+    public void dockerignore_prunes_directories_without_exceptions() {
+        assertTrue(DockerIgnore.parse("node_modules\n").isPruned("node_modules"));
+        assertFalse(DockerIgnore.parse("node_modules\n!node_modules/keep").isPruned("node_modules"));
+    }
+
+    @Test
+    public void only_sends_files_used_by_dockerfile() throws IOException {
+        File root = tmp.getRoot();
+        write(root, "Dockerfile", "FROM ubuntu:14.04\nCOPY src /src\nADD http://example.com/foo.tgz /tmp/\nCOPY *.sh \\\n  /usr/local/bin/\n");
+        write(root, ".dockerignore", "src/**/*.tmp\n");
+        write(root, "src/main/Foo.java", "class Foo {}");
+        write(root, "src/main/Foo.tmp", "");
+        write(root, "run.sh", "#!/bin/sh");
+        write(root, "target/foo.jar", "");
+        write(root, ".git/HEAD", "");
+
+        assertThat(new BuildContext(root, "Dockerfile", false).files(),
+                contains(".dockerignore", "Dockerfile", "run.sh", "src/main/Foo.java"));
+        assertThat(new BuildContext(root, "Dockerfile", true).files(),
+                containsInAnyOrder(".dockerignore", "Dockerfile", "run.sh", "src/main/Foo.java", "target/foo.jar", ".git/HEAD"));
+    }
+
+    @Test
+    public void sends_files_bind_mounted_by_buildkit_run() throws IOException {
+        File root = tmp.getRoot();
+        write(root, "Dockerfile", "FROM maven:3-jdk-8\n"
+                + "RUN --mount=type=cache,target=/root/.m2 --mount=type=bind,source=pom.xml,target=/pom.xml mvn -f /pom.xml dependency:go-offline\n"
+                + "RUN --mount=type=secret,id=token --mount=type=bind,from=builder,source=/out,target=/out ls /out\n");
+        write(root, "pom.xml", "<project/>");
+        write(root, "src/main/Foo.java", "class Foo {}");
+
+        assertThat(new BuildContext(root, "Dockerfile", false).files(),
+                contains("Dockerfile", "pom.xml"));
+    }
+
+    @Test
+    public void digest_only_depends_on_used_files() throws Exception {
+        File root = tmp.getRoot();
+        write(root, "Dockerfile", "FROM ubuntu:14.04\nCOPY src /src\n");
+        write(root, "src/Foo.java", "class Foo {}");
+        String digest = new BuildContext(root, "Dockerfile", false).digest();
+
+        write(root, "README.md", "not used by Dockerfile");
+        assertThat(new BuildContext(root, "Dockerfile", false).digest(), equalTo(digest));
+
+        write(root, "src/Foo.java", "class Foo { }");
+        assertThat(new BuildContext(root, "Dockerfile", false).digest(), not(equalTo(digest)));
+    }
+
+    private static void write(File root, String path, String content) throws IOException {
+        FileUtils.writeStringToFile(new File(root, path), content, "UTF-8");
+    }
+}
@@ -0,0 +1,68 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.endsWith;
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+public class CommandOutputTest {
+
+    @Test
+    public void parses_lines_split_across_writes() throws Exception {
+        final List<String> lines = new ArrayList<String>();
+        CommandOutput out = new CommandOutput(true) {
+            @Override
+            protected void line(String line) {
+                lines.add(line);
+            }
+        };
+        out.write("PATH=/usr/bin\r\nHO".getBytes("UTF-8"));
+        out.write("ME=/root\r\nLAST=no newline".getBytes("UTF-8"));
+        out.close();
+        assertThat(lines, contains("PATH=/usr/bin", "HOME=/root", "LAST=no newline"));
+    }
+
+    @Test
+    public void only_keeps_output_tail() throws Exception {
+        CommandOutput out = new CommandOutput();
+        for (int i = 0; i < 10000; i++) {
+            out.write(("line " + i + "\n").getBytes("UTF-8"));
+        }
+        String tail = out.getTail();
+        assertThat(tail.length(), equalTo(4096));
+        assertThat(tail, endsWith("line 9998\nline 9999\n"));
+    }
+
+    @Test
+    public void truncates_long_lines() throws Exception {
+        final List<String> lines = new ArrayList<String>();
+        CommandOutput out = new CommandOutput(true) {
+            @Override
+            protected void line(String line) {
+                lines.add(line);
+            }
+        };
+        byte[] huge = new byte[1024 * 1024];
+        Arrays.fill(huge, (byte) 'x');
+        out.write(huge);
+        out.write("\nnext\n".getBytes("UTF-8"));
+        out.close();
+        assertThat(lines.size(), equalTo(2));
+        assertThat(lines.get(0).length(), equalTo(65536));
+        assertThat(lines.get(1), equalTo("next"));
+        assertThat(out.getTail(), endsWith("xxx\nnext\n"));
+    }
+
+    @Test
+    public void value_is_first_non_blank_line() throws Exception {
+        CommandOutput.Value out = new CommandOutput.Value();
+        out.write("\n0123456789abcdef\nignored\n".getBytes("UTF-8"));
+        assertThat(out.get(), equalTo("0123456789abcdef"));
+    }
+}
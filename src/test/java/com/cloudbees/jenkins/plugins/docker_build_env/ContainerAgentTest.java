@@ -0,0 +1,90 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import hudson.FilePath;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class ContainerAgentTest {
+
+    private static final String NASTY = "it's \"quoted\"\nnew line $HOME `id` $(id) back\\slash \\' end";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void quotes_single_quotes() {
+        assertThat(ContainerAgent.quote("it's"), equalTo("'it'\"'\"'s'"));
+        assertThat(ContainerAgent.quote(""), equalTo("''"));
+    }
+
+    @Test
+    public void passes_arguments_and_environment_verbatim() throws Exception {
+        assumeTrue(new File("/bin/sh").canExecute());
+        List<String> cmds = Arrays.asList("sh", "-c", "printf '%s|%s' \"$VALUE\" \"$1\"", "sh", NASTY);
+        Map<String, String> env = Collections.singletonMap("VALUE", NASTY);
+        File run = write(ContainerAgent.script(cmds, new FilePath(tmp.getRoot()), env));
+
+        Process process = new ProcessBuilder("/bin/sh", run.getPath()).start();
+        String out = IOUtils.toString(process.getInputStream(), "UTF-8");
+        assertThat(process.waitFor(), equalTo(0));
+        assertThat(out, equalTo(NASTY + "|" + NASTY));
+        assertFalse("script holding build environment is deleted once started", run.exists());
+    }
+
+    @Test
+    public void fails_when_working_directory_is_missing() throws Exception {
+        assumeTrue(new File("/bin/sh").canExecute());
+        FilePath missing = new FilePath(new File(tmp.getRoot(), "missing"));
+        File run = write(ContainerAgent.script(Collections.singletonList("true"), missing, Collections.<String, String>emptyMap()));
+
+        Process process = new ProcessBuilder("/bin/sh", run.getPath()).start();
+        assertThat(process.waitFor(), not(equalTo(0)));
+    }
+
+    @Test
+    public void detects_agent_is_gone_from_heartbeat() throws Exception {
+        File spool = tmp.getRoot();
+        try {
+            ContainerAgent.checkAlive(spool);
+            fail("agent never started");
+        } catch (IOException e) {
+            // expected
+        }
+
+        File heartbeat = tmp.newFile("alive");
+        ContainerAgent.checkAlive(spool);
+
+        assertTrue(heartbeat.setLastModified(System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(1)));
+        try {
+            ContainerAgent.checkAlive(spool);
+            fail("agent stopped");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private File write(String script) throws Exception {
+        File run = new File(tmp.getRoot(), "run");
+        FileUtils.writeStringToFile(run, script, "UTF-8");
+        return run;
+    }
+}
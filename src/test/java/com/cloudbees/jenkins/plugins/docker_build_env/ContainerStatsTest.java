@@ -0,0 +1,48 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class ContainerStatsTest {
+
+    @Test
+    public void parses_docker_cli_sizes() {
+        assertThat(ContainerStats.parseSize("1.5GiB"), equalTo(1610612736L));
+        assertThat(ContainerStats.parseSize(" 648kB "), equalTo(648000L));
+        assertThat(ContainerStats.parseSize("0B"), equalTo(0L));
+        assertThat(ContainerStats.parseSize("12"), equalTo(12L));
+        assertThat(ContainerStats.parseSize("--"), equalTo(0L));
+    }
+
+    @Test
+    public void parses_sample_and_ignores_malformed_lines() {
+        ContainerStats stats = new ContainerStats(0);
+        stats.add(1000, "garbage");
+        assertTrue(stats.isEmpty());
+
+        stats.add(2000, "12.50%|100MiB / 1GiB|1MB / 2MB|3kB / 4kB");
+        assertThat(stats.getAverageCpu(), equalTo(12.5f));
+        assertThat(stats.getPeakMemory(), equalTo(100L << 20));
+        assertThat(stats.getMemoryLimit(), equalTo(1L << 30));
+        assertThat(stats.getBlockWrite(), equalTo(2000000L));
+        assertThat(stats.getNetSent(), equalTo(4000L));
+    }
+
+    @Test
+    public void compacts_samples_keeping_peaks() {
+        ContainerStats stats = new ContainerStats(0);
+        for (int i = 0; i < ContainerStats.MAX_SAMPLES; i++) {
+            String cpu = i % 2 == 0 ? "0%" : "100%";
+            String memory = i == 10 ? "900MiB" : "100MiB";
+            stats.add(i * 1000L, cpu + "|" + memory + " / 1GiB|" + i + "B / 0B|0B / 0B");
+        }
+        assertThat(stats.getCpuPoints().split(" ").length, equalTo(ContainerStats.MAX_SAMPLES / 2));
+        assertThat(stats.getAverageCpu(), equalTo(50f));
+        assertThat(stats.getPeakMemory(), equalTo(900L << 20));
+        // I/O counters are cumulative, so last value is kept
+        assertThat(stats.getBlockRead(), equalTo((long) ContainerStats.MAX_SAMPLES - 1));
+    }
+}
@@ -0,0 +1,67 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+
+public class DockerEngineApiTest {
+
+    @Test
+    public void parses_memory_limits_as_docker_cli_does() {
+        assertThat(DockerEngineApi.parseMemory("512m"), equalTo(512L << 20));
+        assertThat(DockerEngineApi.parseMemory("2G"), equalTo(2L << 30));
+        assertThat(DockerEngineApi.parseMemory("1.5g"), equalTo(3L << 29));
+        assertThat(DockerEngineApi.parseMemory("1t"), equalTo(1L << 40));
+        assertThat(DockerEngineApi.parseMemory("64kb"), equalTo(64L << 10));
+        assertThat(DockerEngineApi.parseMemory("1000"), equalTo(1000L));
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void rejects_invalid_memory_limit() {
+        DockerEngineApi.parseMemory("lots");
+    }
+
+    @Test
+    public void quotes_json_strings() {
+        String value = "say \"hi\"\\\n\ttab\u0001";
+        assertThat(JSONArray.fromObject(DockerEngineApi.array(value)).getString(0), equalTo(value));
+    }
+
+    @Test
+    public void container_config_is_valid_json() {
+        Map<String, String> env = new LinkedHashMap<String, String>();
+        env.put("GREETING", "\"hello\"\nworld");
+        env.put("PATH", "/usr/bin:/bin");
+        Map<Integer, Integer> ports = Collections.singletonMap(8080, 80);
+        String json = DockerEngineApi.containerConfig("ubuntu:16.04", "/ws", Collections.singletonMap("/host", "/container"),
+                ports, Collections.singletonMap("db", "database"), env, false, "host", "1.5g", "512", "1000:1000",
+                Arrays.asList("dockerhost:172.17.0.1"), Collections.singletonMap("jenkins-pool", "\"instance\""), "cat");
+
+        JSONObject config = JSONObject.fromObject(json);
+        assertThat(config.getString("Image"), equalTo("ubuntu:16.04"));
+        assertThat(config.getString("User"), equalTo("1000:1000"));
+        assertThat(config.getJSONArray("Env").getString(0), equalTo("GREETING=\"hello\"\nworld"));
+        assertThat(config.getJSONArray("Cmd").getString(0), equalTo("cat"));
+        assertThat(config.getJSONObject("Labels").getString("jenkins-pool"), equalTo("\"instance\""));
+        assertFalse(config.getJSONObject("ExposedPorts").getJSONObject("80/tcp").isNullObject());
+
+        JSONObject host = config.getJSONObject("HostConfig");
+        assertThat(host.getJSONArray("Binds").getString(0), equalTo("/host:/container:rw"));
+        assertThat(host.getJSONObject("PortBindings").getJSONArray("80/tcp").getJSONObject(0).getString("HostPort"), equalTo("8080"));
+        assertThat(host.getJSONArray("Links").getString(0), equalTo("db:database"));
+        assertThat(host.getJSONArray("ExtraHosts").getString(0), equalTo("dockerhost:172.17.0.1"));
+        assertThat(host.getString("NetworkMode"), equalTo("host"));
+        assertThat(host.getLong("Memory"), equalTo(3L << 29));
+        assertThat(host.getInt("CpuShares"), equalTo(512));
+        assertFalse(host.getBoolean("Privileged"));
+    }
+}
@@ -0,0 +1,45 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import net.sf.json.JSONArray;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class DockerImagePresenceTest {
+
+    @Test
+    public void normalizes_references_the_way_daemon_reports_them() {
+        assertThat(DockerImagePresence.normalize("alpine"), equalTo("alpine:latest"));
+        assertThat(DockerImagePresence.normalize("docker.io/library/alpine"), equalTo("alpine:latest"));
+        assertThat(DockerImagePresence.normalize("index.docker.io/library/alpine:3.8"), equalTo("alpine:3.8"));
+        assertThat(DockerImagePresence.normalize("jenkins/slave"), equalTo("jenkins/slave:latest"));
+        assertThat(DockerImagePresence.normalize("registry:5000/team/app"), equalTo("registry:5000/team/app:latest"));
+        assertThat(DockerImagePresence.normalize("registry:5000/team/app:1.0"), equalTo("registry:5000/team/app:1.0"));
+        assertThat(DockerImagePresence.normalize("alpine@sha256:0123"), equalTo("alpine@sha256:0123"));
+    }
+
+    @Test
+    public void unknown_until_seeded() {
+        assertThat(new DockerImagePresence("unix:///var/run/docker.sock").contains("alpine"), nullValue());
+    }
+
+    @Test
+    public void contains_seeded_references_and_ids() {
+        String id = "sha256:0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+        DockerImagePresence index = new DockerImagePresence("unix:///var/run/docker.sock");
+        index.seed(JSONArray.fromObject("[{\"Id\":\"" + id + "\","
+                + "\"RepoTags\":[\"alpine:3.8\",\"registry:5000/team/app:latest\"],"
+                + "\"RepoDigests\":[\"alpine@sha256:fedc\"]},"
+                + "{\"Id\":\"sha256:fedcba9876543210\",\"RepoTags\":[\"<none>:<none>\"]}]"));
+
+        assertThat(index.contains("docker.io/library/alpine:3.8"), equalTo(true));
+        assertThat(index.contains("alpine@sha256:fedc"), equalTo(true));
+        assertThat(index.contains("registry:5000/team/app"), equalTo(true));
+        assertThat(index.contains("alpine"), equalTo(false));
+        assertThat(index.contains("0123456789ab"), equalTo(true));
+        assertThat(index.contains(id), equalTo(true));
+        assertThat(index.contains("abcdef012345"), equalTo(false));
+    }
+}
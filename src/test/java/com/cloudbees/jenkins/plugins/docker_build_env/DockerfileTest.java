@@ -0,0 +1,31 @@
+package com.cloudbees.jenkins.plugins.docker_build_env;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.hamcrest.Matchers.contains;
+import static org.junit.Assert.assertThat;
+
+public class DockerfileTest {
+
+    @Test
+    public void base_images_skip_build_stages_and_substitute_args() throws IOException {
+        Dockerfile dockerfile = Dockerfile.parse("ARG JDK=8\n"
+                + "ARG REGISTRY\n"
+                + "ARG NODE_TAG=\"10-alpine\"\n"
+                + "FROM --platform=linux/amd64 maven:3-jdk-${JDK} AS builder\n"
+                + "RUN mvn package\n"
+                + "FROM node:$NODE_TAG as Frontend\n"
+                + "FROM ${REGISTRY}/tools:latest\n"
+                + "FROM ${REGISTRY:-docker.io}/library/ubuntu:16.04 AS runtime\n"
+                + "COPY --from=builder /target/app.jar /app.jar\n"
+                + "COPY --from=nginx:1.15 /etc/nginx/nginx.conf /etc/nginx/\n"
+                + "COPY --from=0 /target /target\n"
+                + "FROM frontend\n"
+                + "FROM scratch\n");
+
+        assertThat(dockerfile.getBaseImages(),
+                contains("maven:3-jdk-8", "node:10-alpine", "docker.io/library/ubuntu:16.04", "nginx:1.15"));
+    }
+}